@@ -36,6 +36,14 @@ LOCAL_RESOURCE_DIR := $(LOCAL_PATH)/res \
     frameworks/support/v7/appcompat/res \
     frameworks/support/v7/recyclerview/res
 
+# A product can ship a search index snapshot exported on a device running a build with the same
+# Settings resources, see src/com/android/settings/search/IndexSnapshot.java.
+# SETTINGS_SEARCH_SNAPSHOT_DIR must point to the directory containing the search_index_snapshot.db
+# file.
+ifneq ($(SETTINGS_SEARCH_SNAPSHOT_DIR),)
+LOCAL_ASSET_DIR := $(SETTINGS_SEARCH_SNAPSHOT_DIR)
+endif
+
 LOCAL_PACKAGE_NAME := Settings
 LOCAL_CERTIFICATE := platform
 LOCAL_PRIVILEGED_MODULE := true
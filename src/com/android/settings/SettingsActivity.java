@@ -80,6 +80,7 @@ import com.android.settings.applications.WriteSettingsDetails;
 import com.android.settings.bluetooth.BluetoothSettings;
 import com.android.settings.dashboard.DashboardContainerFragment;
 import com.android.settings.dashboard.SearchResultsSummary;
+import com.android.settings.dashboard.SuggestionsChecks;
 import com.android.settings.datausage.DataUsageSummary;
 import com.android.settings.deletionhelper.AutomaticStorageManagerSettings;
 import com.android.settings.deviceinfo.ImeiInformation;
@@ -1468,6 +1469,10 @@ public class SettingsActivity extends SettingsDrawerActivity
 
     @Override
     protected void onActivityResult(int requestCode, int resultCode, Intent data) {
+        if (requestCode == REQUEST_SUGGESTION) {
+            // Following a suggestion may have changed the results of the suggestions checks
+            SuggestionsChecks.invalidateCache();
+        }
         if (requestCode == REQUEST_SUGGESTION && mCurrentSuggestion != null
                 && resultCode != RESULT_CANCELED) {
             getPackageManager().setComponentEnabledSetting(mCurrentSuggestion,
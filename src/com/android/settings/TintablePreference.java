@@ -31,8 +31,10 @@ public class TintablePreference extends Preference {
     }
 
     public void setTint(int color) {
-        mTintColor = color;
-        notifyChanged();
+        if (color != mTintColor) {
+            mTintColor = color;
+            notifyChanged();
+        }
     }
 
     @Override
@@ -113,6 +113,9 @@ public class AppOpsCategory extends ListFragment implements
         }
 
         @Override public void onReceive(Context context, Intent intent) {
+            // The cached states must be dropped before the loader reloads, whichever receiver
+            // is called first.
+            AppOpsState.invalidateStateCache();
             // Tell the loader about the change.
             mLoader.onContentChanged();
         }
@@ -17,7 +17,10 @@
 package com.android.settings.applications;
 
 import android.app.AppOpsManager;
+import android.content.BroadcastReceiver;
 import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
 import android.content.pm.ApplicationInfo;
 import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
@@ -26,7 +29,10 @@ import android.content.res.Resources;
 import android.graphics.drawable.Drawable;
 import android.os.Parcel;
 import android.os.Parcelable;
+import android.os.SystemClock;
 import android.text.format.DateUtils;
+import android.util.ArrayMap;
+import android.util.ArraySet;
 import android.util.Log;
 import android.util.SparseArray;
 
@@ -35,15 +41,28 @@ import com.android.settings.R;
 import java.io.File;
 import java.text.Collator;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Locale;
 
 public class AppOpsState {
     static final String TAG = "AppOpsState";
     static final boolean DEBUG = false;
 
+    // The access times of the ops have no change callback, so cached states are only reused
+    // for this long
+    private static final long STATE_CACHE_MAX_AGE_MILLIS = 30 * 1000;
+
+    // States built for all the packages by template, until a package or an op mode changes
+    private static final ArrayMap<String, CachedState> sStateCache = new ArrayMap<>();
+    // Incremented on each invalidation, so that the states built meanwhile are not cached
+    private static int sStateCacheGeneration;
+    private static final ArraySet<Integer> sWatchedOps = new ArraySet<>();
+    private static BroadcastReceiver sPackageReceiver;
+
     final Context mContext;
     final AppOpsManager mAppOps;
     final PackageManager mPm;
@@ -53,9 +72,10 @@ public class AppOpsState {
     List<AppOpEntry> mApps;
 
     public AppOpsState(Context context) {
-        mContext = context;
-        mAppOps = (AppOpsManager)context.getSystemService(Context.APP_OPS_SERVICE);
-        mPm = context.getPackageManager();
+        // The states may be cached for longer than the screen using them
+        mContext = context.getApplicationContext();
+        mAppOps = (AppOpsManager)mContext.getSystemService(Context.APP_OPS_SERVICE);
+        mPm = mContext.getPackageManager();
         mOpSummaries = context.getResources().getTextArray(R.array.app_ops_summaries);
         mOpLabels = context.getResources().getTextArray(R.array.app_ops_labels);
     }
@@ -64,11 +84,52 @@ public class AppOpsState {
         public final int[] ops;
         public final boolean[] showPerms;
 
+        // The ops shown for the permissions of the template, and the order of the ops, built
+        // when first needed
+        private ArrayMap<String, Integer> mPermissionOps;
+        private int[] mOpToOrder;
+
         public OpsTemplate(int[] _ops, boolean[] _showPerms) {
             ops = _ops;
             showPerms = _showPerms;
         }
 
+        private synchronized void buildPermissionIndex() {
+            if (mPermissionOps != null) {
+                return;
+            }
+            final ArrayMap<String, Integer> permissionOps = new ArrayMap<>();
+            final int[] opToOrder = new int[AppOpsManager._NUM_OP];
+            for (int i = 0; i < ops.length; i++) {
+                if (showPerms[i]) {
+                    String perm = AppOpsManager.opToPermission(ops[i]);
+                    if (perm != null && !permissionOps.containsKey(perm)) {
+                        permissionOps.put(perm, ops[i]);
+                        opToOrder[ops[i]] = i;
+                    }
+                }
+            }
+            mOpToOrder = opToOrder;
+            mPermissionOps = permissionOps;
+        }
+
+        ArrayMap<String, Integer> getPermissionOps() {
+            buildPermissionIndex();
+            return mPermissionOps;
+        }
+
+        int[] getOpToOrder() {
+            buildPermissionIndex();
+            return mOpToOrder;
+        }
+
+        /**
+         * @return a key equal for the copies of this template, e.g. unparceled ones
+         */
+        String getKey() {
+            return Arrays.toString(ops) + Arrays.toString(showPerms);
+        }
+
         OpsTemplate(Parcel src) {
             ops = src.createIntArray();
             showPerms = src.createBooleanArray();
@@ -259,7 +320,17 @@ public class AppOpsState {
             return mLabel;
         }
 
+        /**
+         * Returns a new drawable of the icon of the app. The entries are cached for longer than
+         * the screens showing them, so the drawable they keep is never bound to a view.
+         */
         public Drawable getIcon() {
+            final Drawable icon = loadIcon();
+            final Drawable.ConstantState state = icon.getConstantState();
+            return state != null ? state.newDrawable() : icon;
+        }
+
+        private synchronized Drawable loadIcon() {
             if (mIcon == null) {
                 if (mApkFile.exists()) {
                     mIcon = mInfo.loadIcon(mState.mPm);
@@ -528,24 +599,84 @@ public class AppOpsState {
 
     public List<AppOpEntry> buildState(OpsTemplate tpl, int uid, String packageName,
             Comparator<AppOpEntry> comparator) {
-        final Context context = mContext;
+        if (packageName != null) {
+            return buildStateUncached(tpl, uid, packageName, comparator);
+        }
 
-        final HashMap<String, AppEntry> appEntries = new HashMap<String, AppEntry>();
-        final List<AppOpEntry> entries = new ArrayList<AppOpEntry>();
+        final String key = tpl.getKey();
+        final int generation;
+        synchronized (sStateCache) {
+            final CachedState cached = sStateCache.get(key);
+            if (cached != null && cached.isValid(comparator)) {
+                return new ArrayList<AppOpEntry>(cached.entries);
+            }
+            generation = sStateCacheGeneration;
+        }
+        watchChanges(tpl);
+        final List<AppOpEntry> entries = buildStateUncached(tpl, uid, null, comparator);
+        synchronized (sStateCache) {
+            if (generation == sStateCacheGeneration) {
+                sStateCache.put(key, new CachedState(comparator, entries));
+            }
+        }
+        return new ArrayList<AppOpEntry>(entries);
+    }
 
-        final ArrayList<String> perms = new ArrayList<String>();
-        final ArrayList<Integer> permOps = new ArrayList<Integer>();
-        final int[] opToOrder = new int[AppOpsManager._NUM_OP];
-        for (int i=0; i<tpl.ops.length; i++) {
-            if (tpl.showPerms[i]) {
-                String perm = AppOpsManager.opToPermission(tpl.ops[i]);
-                if (perm != null && !perms.contains(perm)) {
-                    perms.add(perm);
-                    permOps.add(tpl.ops[i]);
-                    opToOrder[tpl.ops[i]] = i;
+    /**
+     * Forget the states built for all the packages.
+     */
+    static void invalidateStateCache() {
+        synchronized (sStateCache) {
+            sStateCache.clear();
+            sStateCacheGeneration++;
+        }
+    }
+
+    /**
+     * Invalidate the cached states on the changes of the packages and of the ops of a template.
+     * Like the cache, the watchers are kept as long as the process lives.
+     */
+    private void watchChanges(OpsTemplate tpl) {
+        synchronized (sWatchedOps) {
+            if (sPackageReceiver == null) {
+                sPackageReceiver = new BroadcastReceiver() {
+                    @Override
+                    public void onReceive(Context context, Intent intent) {
+                        invalidateStateCache();
+                    }
+                };
+                IntentFilter filter = new IntentFilter(Intent.ACTION_PACKAGE_ADDED);
+                filter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+                filter.addAction(Intent.ACTION_PACKAGE_CHANGED);
+                filter.addDataScheme("package");
+                mContext.registerReceiver(sPackageReceiver, filter);
+                IntentFilter sdFilter = new IntentFilter();
+                sdFilter.addAction(Intent.ACTION_EXTERNAL_APPLICATIONS_AVAILABLE);
+                sdFilter.addAction(Intent.ACTION_EXTERNAL_APPLICATIONS_UNAVAILABLE);
+                mContext.registerReceiver(sPackageReceiver, sdFilter);
+            }
+            for (int op : tpl.ops) {
+                if (sWatchedOps.add(op)) {
+                    mAppOps.startWatchingMode(op, null, new AppOpsManager.OnOpChangedListener() {
+                        @Override
+                        public void onOpChanged(String op, String packageName) {
+                            invalidateStateCache();
+                        }
+                    });
                 }
             }
         }
+    }
+
+    private List<AppOpEntry> buildStateUncached(OpsTemplate tpl, int uid, String packageName,
+            Comparator<AppOpEntry> comparator) {
+        final Context context = mContext;
+
+        final HashMap<String, AppEntry> appEntries = new HashMap<String, AppEntry>();
+        final List<AppOpEntry> entries = new ArrayList<AppOpEntry>();
+
+        final ArrayMap<String, Integer> permissionOps = tpl.getPermissionOps();
+        final int[] opToOrder = tpl.getOpToOrder();
 
         List<AppOpsManager.PackageOps> pkgs;
         if (packageName != null) {
@@ -578,8 +709,10 @@ public class AppOpsState {
             } catch (NameNotFoundException e) {
             }
         } else {
-            String[] permsArray = new String[perms.size()];
-            perms.toArray(permsArray);
+            String[] permsArray = new String[permissionOps.size()];
+            for (int i = 0; i < permsArray.length; i++) {
+                permsArray[i] = permissionOps.keyAt(i);
+            }
             apps = mPm.getPackagesHoldingPermissions(permsArray, 0);
         }
         for (int i=0; i<apps.size(); i++) {
@@ -603,27 +736,27 @@ public class AppOpsState {
                     }
                     if (DEBUG) Log.d(TAG, "Pkg " + appInfo.packageName + ": requested perm "
                             + appInfo.requestedPermissions[j]);
-                    for (int k=0; k<perms.size(); k++) {
-                        if (!perms.get(k).equals(appInfo.requestedPermissions[j])) {
-                            continue;
-                        }
-                        if (DEBUG) Log.d(TAG, "Pkg " + appInfo.packageName + " perm " + perms.get(k)
-                                + " has op " + permOps.get(k) + ": " + appEntry.hasOp(permOps.get(k)));
-                        if (appEntry.hasOp(permOps.get(k))) {
-                            continue;
-                        }
-                        if (dummyOps == null) {
-                            dummyOps = new ArrayList<AppOpsManager.OpEntry>();
-                            pkgOps = new AppOpsManager.PackageOps(
-                                    appInfo.packageName, appInfo.applicationInfo.uid, dummyOps);
+                    final Integer permOp = permissionOps.get(appInfo.requestedPermissions[j]);
+                    if (permOp == null) {
+                        continue;
+                    }
+                    if (DEBUG) Log.d(TAG, "Pkg " + appInfo.packageName + " perm "
+                            + appInfo.requestedPermissions[j] + " has op " + permOp + ": "
+                            + appEntry.hasOp(permOp));
+                    if (appEntry.hasOp(permOp)) {
+                        continue;
+                    }
+                    if (dummyOps == null) {
+                        dummyOps = new ArrayList<AppOpsManager.OpEntry>();
+                        pkgOps = new AppOpsManager.PackageOps(
+                                appInfo.packageName, appInfo.applicationInfo.uid, dummyOps);
 
-                        }
-                        AppOpsManager.OpEntry opEntry = new AppOpsManager.OpEntry(
-                                permOps.get(k), AppOpsManager.MODE_ALLOWED, 0, 0, 0, -1, null);
-                        dummyOps.add(opEntry);
-                        addOp(entries, pkgOps, appEntry, opEntry, packageName == null,
-                                packageName == null ? 0 : opToOrder[opEntry.getOp()]);
                     }
+                    AppOpsManager.OpEntry opEntry = new AppOpsManager.OpEntry(
+                            permOp, AppOpsManager.MODE_ALLOWED, 0, 0, 0, -1, null);
+                    dummyOps.add(opEntry);
+                    addOp(entries, pkgOps, appEntry, opEntry, packageName == null,
+                            packageName == null ? 0 : opToOrder[opEntry.getOp()]);
                 }
             }
         }
@@ -634,4 +767,21 @@ public class AppOpsState {
         // Done!
         return entries;
     }
+
+    private static class CachedState {
+        final Comparator<AppOpEntry> comparator;
+        final Locale locale = Locale.getDefault();
+        final long time = SystemClock.elapsedRealtime();
+        final List<AppOpEntry> entries;
+
+        CachedState(Comparator<AppOpEntry> comparator, List<AppOpEntry> entries) {
+            this.comparator = comparator;
+            this.entries = entries;
+        }
+
+        boolean isValid(Comparator<AppOpEntry> comparator) {
+            return this.comparator == comparator && locale.equals(Locale.getDefault())
+                    && SystemClock.elapsedRealtime() - time < STATE_CACHE_MAX_AGE_MILLIS;
+        }
+    }
 }
@@ -0,0 +1,168 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.android.settings.applications;
+
+import com.android.settingslib.applications.ApplicationsState.AppEntry;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Finds the app entries having a word of their normalized label starting with a prefix.
+ *
+ * The label suffixes starting at each word are sorted once, when first filtering, so that the
+ * entries matching a prefix are found by binary search. As the user usually types the prefix
+ * one character at a time, a prefix extending the previous one is searched for within the
+ * range found for that one.
+ */
+class AppPrefixIndex {
+
+    private final ArrayList<AppEntry> mEntries;
+    // Normalized labels of the entries, by position
+    private String[] mLabels;
+
+    // Sorted label suffixes starting at a word, and the position of their entry
+    private String[] mWords;
+    private int[] mPositions;
+
+    // The previous prefix and the range of words starting with it
+    private String mLastPrefix;
+    private int mLastStart;
+    private int mLastEnd;
+
+    public AppPrefixIndex(ArrayList<AppEntry> entries) {
+        mEntries = entries;
+    }
+
+    // For testing, as the entries cannot be created outside of ApplicationsState
+    AppPrefixIndex(String[] labels) {
+        mEntries = null;
+        mLabels = labels;
+    }
+
+    /**
+     * @param prefix a prefix normalized like the labels, see
+     *     {@link com.android.settingslib.applications.ApplicationsState#normalize}
+     * @return the entries matching the prefix, in their order
+     */
+    public ArrayList<AppEntry> filter(String prefix) {
+        final boolean[] matches = match(prefix);
+        final ArrayList<AppEntry> result = new ArrayList<>();
+        for (int i = 0; i < matches.length; i++) {
+            if (matches[i]) {
+                result.add(mEntries.get(i));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return whether the label of each entry matches a prefix, by position
+     */
+    synchronized boolean[] match(String prefix) {
+        if (mWords == null) {
+            build();
+        }
+        int start = 0;
+        int end = mWords.length;
+        if (mLastPrefix != null && prefix.startsWith(mLastPrefix)) {
+            start = mLastStart;
+            end = mLastEnd;
+        }
+        start = findFirstNotBefore(prefix, start, end);
+        end = findFirstNotStartingWith(prefix, start, end);
+        mLastPrefix = prefix;
+        mLastStart = start;
+        mLastEnd = end;
+
+        final boolean[] matches = new boolean[mLabels.length];
+        for (int i = start; i < end; i++) {
+            matches[mPositions[i]] = true;
+        }
+        return matches;
+    }
+
+    private void build() {
+        if (mLabels == null) {
+            mLabels = new String[mEntries.size()];
+            for (int i = 0; i < mLabels.length; i++) {
+                mLabels[i] = mEntries.get(i).getNormalizedLabel();
+            }
+        }
+        final ArrayList<String> words = new ArrayList<>();
+        final ArrayList<Integer> positions = new ArrayList<>();
+        final int N = mLabels.length;
+        for (int i = 0; i < N; i++) {
+            final String label = mLabels[i];
+            if (label == null) {
+                continue;
+            }
+            // The label and what follows each space, as the entries used to be matched with
+            // startsWith(prefix) or indexOf(" " + prefix)
+            int wordStart = 0;
+            while (wordStart >= 0) {
+                words.add(label.substring(wordStart));
+                positions.add(i);
+                final int space = label.indexOf(' ', wordStart);
+                wordStart = (space >= 0) ? space + 1 : -1;
+            }
+        }
+
+        final Integer[] order = new Integer[words.size()];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer lhs, Integer rhs) {
+                return words.get(lhs).compareTo(words.get(rhs));
+            }
+        });
+        mWords = new String[order.length];
+        mPositions = new int[order.length];
+        for (int i = 0; i < order.length; i++) {
+            mWords[i] = words.get(order[i]);
+            mPositions[i] = positions.get(order[i]);
+        }
+    }
+
+    private int findFirstNotBefore(String prefix, int start, int end) {
+        while (start < end) {
+            final int mid = (start + end) >>> 1;
+            if (mWords[mid].compareTo(prefix) < 0) {
+                start = mid + 1;
+            } else {
+                end = mid;
+            }
+        }
+        return start;
+    }
+
+    /**
+     * @param start the first word not sorted before the prefix
+     */
+    private int findFirstNotStartingWith(String prefix, int start, int end) {
+        while (start < end) {
+            final int mid = (start + end) >>> 1;
+            if (mWords[mid].startsWith(prefix)) {
+                start = mid + 1;
+            } else {
+                end = mid;
+            }
+        }
+        return start;
+    }
+}
@@ -49,7 +49,10 @@ public abstract class AppStateBaseBridge implements ApplicationsState.Callbacks
     }
 
     public void resume() {
-        mHandler.sendEmptyMessage(BackgroundHandler.MSG_LOAD_ALL);
+        // The extra info may have changed while paused
+        mHandler.removeMessages(BackgroundHandler.MSG_LOAD_ALL);
+        mHandler.obtainMessage(BackgroundHandler.MSG_LOAD_ALL, 1 /* invalidate */, 0)
+                .sendToTarget();
         mAppSession.resume();
     }
 
@@ -67,12 +70,19 @@ public abstract class AppStateBaseBridge implements ApplicationsState.Callbacks
 
     @Override
     public void onPackageListChanged() {
-        mHandler.sendEmptyMessage(BackgroundHandler.MSG_LOAD_ALL);
+        scheduleLoadAll();
     }
 
     @Override
     public void onLoadEntriesCompleted() {
-        mHandler.sendEmptyMessage(BackgroundHandler.MSG_LOAD_ALL);
+        scheduleLoadAll();
+    }
+
+    private void scheduleLoadAll() {
+        // A pending load will see the current apps as well
+        if (!mHandler.hasMessages(BackgroundHandler.MSG_LOAD_ALL)) {
+            mHandler.sendEmptyMessage(BackgroundHandler.MSG_LOAD_ALL);
+        }
     }
 
     @Override
@@ -105,9 +115,22 @@ public abstract class AppStateBaseBridge implements ApplicationsState.Callbacks
         // No op.
     }
 
+    /**
+     * Load the extra info of all the apps, on the background thread. Implementations should
+     * fetch the state of all the packages in bulk where their backend allows it, query what is
+     * the same for all the packages only once, and leave what is only needed to display an app,
+     * like its label and icon, to ApplicationsState.
+     */
     protected abstract void loadAllExtraInfo();
     protected abstract void updateExtraInfo(AppEntry app, String pkg, int uid);
 
+    /**
+     * Forget the extra info cached by the previous loads, if any, as it may be out of date.
+     * Called on the background thread before loading all the extra info again.
+     */
+    protected void invalidateExtraInfo() {
+    }
+
     private class MainHandler extends Handler {
         private static final int MSG_INFO_UPDATED = 1;
 
@@ -133,6 +156,9 @@ public abstract class AppStateBaseBridge implements ApplicationsState.Callbacks
         public void handleMessage(Message msg) {
             switch (msg.what) {
                 case MSG_LOAD_ALL:
+                    if (msg.arg1 != 0) {
+                        invalidateExtraInfo();
+                    }
                     loadAllExtraInfo();
                     mMainHandler.sendEmptyMessage(MainHandler.MSG_INFO_UPDATED);
                     break;
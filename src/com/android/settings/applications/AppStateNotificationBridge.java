@@ -17,11 +17,9 @@ package com.android.settings.applications;
 
 import android.app.Notification;
 import android.content.Context;
-import android.content.pm.PackageManager;
-import android.os.UserHandle;
 import android.service.notification.NotificationListenerService;
+import android.util.ArrayMap;
 
-import com.android.internal.widget.LockPatternUtils;
 import com.android.settings.notification.NotificationBackend;
 import com.android.settings.notification.NotificationBackend.AppRow;
 import com.android.settingslib.applications.ApplicationsState;
@@ -37,30 +35,75 @@ import java.util.ArrayList;
 public class AppStateNotificationBridge extends AppStateBaseBridge {
 
     private final NotificationBackend mNotifBackend;
-    private final PackageManager mPm;
     private final Context mContext;
+    // Rows loaded since the last invalidation by uid and package, only used in the background
+    private final ArrayMap<String, AppRow> mRows = new ArrayMap<>();
 
     public AppStateNotificationBridge(Context context, ApplicationsState appState,
             Callback callback, NotificationBackend notifBackend) {
         super(appState, callback);
         mContext = context;
-        mPm = mContext.getPackageManager();
         mNotifBackend = notifBackend;
     }
 
     @Override
     protected void loadAllExtraInfo() {
         ArrayList<AppEntry> apps = mAppSession.getAllApps();
+        final boolean lockScreenSecure = mNotifBackend.isLockScreenSecure(mContext);
         final int N = apps.size();
         for (int i = 0; i < N; i++) {
             AppEntry app = apps.get(i);
-            app.extraInfo = mNotifBackend.loadAppRow(mContext, mPm, app.info);
+            // Only the apps added since the last invalidation need to be loaded
+            AppRow row = mRows.get(getKey(app.info.packageName, app.info.uid));
+            if (row == null) {
+                row = loadAppRow(app, lockScreenSecure);
+            } else if (row.lockScreenSecure != lockScreenSecure) {
+                // The rows are read by the UI thread: replace them rather than changing them
+                row = copyAppRow(row, lockScreenSecure);
+                mRows.put(getKey(row.pkg, row.uid), row);
+            }
+            app.extraInfo = row;
         }
     }
 
     @Override
     protected void updateExtraInfo(AppEntry app, String pkg, int uid) {
-        app.extraInfo = mNotifBackend.loadAppRow(mContext, mPm, app.info);
+        app.extraInfo = loadAppRow(app, mNotifBackend.isLockScreenSecure(mContext));
+    }
+
+    @Override
+    protected void invalidateExtraInfo() {
+        mRows.clear();
+    }
+
+    private AppRow loadAppRow(AppEntry app, boolean lockScreenSecure) {
+        // The list shows the label and icon of the AppEntry
+        final AppRow row = mNotifBackend.loadAppRowSettings(app.info, lockScreenSecure);
+        mRows.put(getKey(row.pkg, row.uid), row);
+        return row;
+    }
+
+    private static AppRow copyAppRow(AppRow row, boolean lockScreenSecure) {
+        final AppRow copy = new AppRow();
+        copy.section = row.section;
+        copy.pkg = row.pkg;
+        copy.uid = row.uid;
+        copy.icon = row.icon;
+        copy.label = row.label;
+        copy.settingsIntent = row.settingsIntent;
+        copy.banned = row.banned;
+        copy.first = row.first;
+        copy.cantBlock = row.cantBlock;
+        copy.cantSilence = row.cantSilence;
+        copy.appImportance = row.appImportance;
+        copy.appBypassDnd = row.appBypassDnd;
+        copy.appVisOverride = row.appVisOverride;
+        copy.lockScreenSecure = lockScreenSecure;
+        return copy;
+    }
+
+    private static String getKey(String pkg, int uid) {
+        return uid + "/" + pkg;
     }
 
     public static final AppFilter FILTER_APP_NOTIFICATION_BLOCKED = new AppFilter() {
@@ -77,7 +77,6 @@ import android.widget.TextView;
 import com.android.internal.logging.MetricsProto.MetricsEvent;
 import com.android.internal.os.BatterySipper;
 import com.android.internal.os.BatteryStatsHelper;
-import com.android.internal.widget.LockPatternUtils;
 import com.android.settings.AppHeader;
 import com.android.settings.DeviceAdminAdd;
 import com.android.settings.R;
@@ -1045,7 +1044,8 @@ public class InstalledAppDetails extends AppInfoBase
 
     public static CharSequence getNotificationSummary(AppEntry appEntry, Context context,
             NotificationBackend backend) {
-        AppRow appRow = backend.loadAppRow(context, context.getPackageManager(), appEntry.info);
+        AppRow appRow = backend.loadAppRowSettings(appEntry.info,
+                backend.isLockScreenSecure(context));
         return getNotificationSummary(appRow, context);
     }
 
@@ -1067,9 +1067,7 @@ public class InstalledAppDetails extends AppInfoBase
                 summaryAttributes.add(context.getString(R.string.notifications_silenced));
             }
         }
-        final boolean lockscreenSecure = new LockPatternUtils(context).isSecure(
-                UserHandle.myUserId());
-        if (lockscreenSecure) {
+        if (appRow.lockScreenSecure) {
             if (appRow.appVisOverride == Notification.VISIBILITY_PRIVATE) {
                 summaryAttributes.add(context.getString(R.string.notifications_redacted));
             } else if (appRow.appVisOverride == Notification.VISIBILITY_SECRET) {
@@ -32,6 +32,7 @@ import android.os.UserHandle;
 import android.os.UserManager;
 import android.preference.PreferenceFrameLayout;
 import android.text.TextUtils;
+import android.util.ArrayMap;
 import android.util.ArraySet;
 import android.util.Log;
 import android.view.LayoutInflater;
@@ -735,6 +736,8 @@ public class ManageApplications extends InstrumentedFragment
         private final Handler mFgHandler;
         private int mFilterMode;
         private ArrayList<ApplicationsState.AppEntry> mBaseEntries;
+        // Index of mBaseEntries for the prefix filter
+        private AppPrefixIndex mPrefixIndex;
         private ArrayList<ApplicationsState.AppEntry> mEntries;
         private boolean mResumed;
         private int mLastSortMode = -1;
@@ -748,12 +751,15 @@ public class ManageApplications extends InstrumentedFragment
         private AlphabeticIndex.ImmutableIndex<Locale> mIndex;
         private SectionInfo[] mSections = EMPTY_SECTIONS;
         private int[] mPositionToSectionIndex;
+        // Buckets of the entries in mIndex, computed once per rebuild
+        private final ArrayMap<ApplicationsState.AppEntry, Integer> mBucketIndexes =
+                new ArrayMap<>();
 
         private Filter mFilter = new Filter() {
             @Override
             protected FilterResults performFiltering(CharSequence constraint) {
                 ArrayList<ApplicationsState.AppEntry> entries
-                        = applyPrefixFilter(constraint, mBaseEntries);
+                        = applyPrefixFilter(constraint, mBaseEntries, mPrefixIndex);
                 FilterResults fr = new FilterResults();
                 fr.values = entries;
                 fr.count = entries.size();
@@ -939,10 +945,13 @@ public class ManageApplications extends InstrumentedFragment
                 entries = removeDuplicateIgnoringUser(entries);
             }
             mBaseEntries = entries;
+            mBucketIndexes.clear();
             if (mBaseEntries != null) {
-                mEntries = applyPrefixFilter(mCurFilterPrefix, mBaseEntries);
+                mPrefixIndex = new AppPrefixIndex(mBaseEntries);
+                mEntries = applyPrefixFilter(mCurFilterPrefix, mBaseEntries, mPrefixIndex);
                 rebuildSections();
             } else {
+                mPrefixIndex = null;
                 mEntries = null;
                 mSections = EMPTY_SECTIONS;
                 mPositionToSectionIndex = null;
@@ -987,8 +996,7 @@ public class ManageApplications extends InstrumentedFragment
                 mPositionToSectionIndex = new int[totalEntries];
 
                 for (int pos = 0; pos < totalEntries; pos++) {
-                    String label = mEntries.get(pos).label;
-                    int secId = mIndex.getBucketIndex(TextUtils.isEmpty(label) ? "" : label);
+                    int secId = getBucketIndex(mEntries.get(pos));
                     if (secId != lastSecId) {
                         lastSecId = secId;
                         sections.add(new SectionInfo(mIndex.getBucket(secId).getLabel(), pos));
@@ -1002,6 +1010,16 @@ public class ManageApplications extends InstrumentedFragment
             }
         }
 
+        private int getBucketIndex(ApplicationsState.AppEntry entry) {
+            Integer bucketIndex = mBucketIndexes.get(entry);
+            if (bucketIndex == null) {
+                String label = entry.label;
+                bucketIndex = mIndex.getBucketIndex(TextUtils.isEmpty(label) ? "" : label);
+                mBucketIndexes.put(entry, bucketIndex);
+            }
+            return bucketIndex;
+        }
+
         private void updateLoading() {
             Utils.handleLoadingContainer(mManageApplications.mLoadingContainer,
                     mManageApplications.mListContainer,
@@ -1009,22 +1027,11 @@ public class ManageApplications extends InstrumentedFragment
         }
 
         ArrayList<ApplicationsState.AppEntry> applyPrefixFilter(CharSequence prefix,
-                                                                ArrayList<ApplicationsState.AppEntry> origEntries) {
-            if (prefix == null || prefix.length() == 0) {
+                ArrayList<ApplicationsState.AppEntry> origEntries, AppPrefixIndex index) {
+            if (prefix == null || prefix.length() == 0 || index == null) {
                 return origEntries;
             } else {
-                String prefixStr = ApplicationsState.normalize(prefix.toString());
-                final String spacePrefixStr = " " + prefixStr;
-                ArrayList<ApplicationsState.AppEntry> newEntries
-                        = new ArrayList<ApplicationsState.AppEntry>();
-                for (int i = 0; i < origEntries.size(); i++) {
-                    ApplicationsState.AppEntry entry = origEntries.get(i);
-                    String nlabel = entry.getNormalizedLabel();
-                    if (nlabel.startsWith(prefixStr) || nlabel.indexOf(spacePrefixStr) != -1) {
-                        newEntries.add(entry);
-                    }
-                }
-                return newEntries;
+                return index.filter(ApplicationsState.normalize(prefix.toString()));
             }
         }
 
@@ -361,12 +361,30 @@ public class RunningState {
 
         public Drawable loadIcon(Context context, RunningState state) {
             if (mPackageInfo != null) {
-                Drawable unbadgedIcon = mPackageInfo.loadUnbadgedIcon(state.mPm);
+                Drawable unbadgedIcon = getSharedIcon(context);
+                if (unbadgedIcon == null) {
+                    unbadgedIcon = mPackageInfo.loadUnbadgedIcon(state.mPm);
+                }
                 Drawable icon = state.mPm.getUserBadgedIcon(unbadgedIcon, new UserHandle(mUserId));
                 return icon;
             }
             return null;
         }
+
+        /**
+         * @return the icon of the app of this item if another screen has already loaded it
+         */
+        private Drawable getSharedIcon(Context context) {
+            if (!(mPackageInfo instanceof ApplicationInfo)) {
+                return null;
+            }
+            final UidLabelCache.Entry entry = UidLabelCache.getInstance(context).get(
+                    ((ApplicationInfo) mPackageInfo).uid);
+            if (entry == null || !mPackageInfo.packageName.equals(entry.packageName)) {
+                return null;
+            }
+            return entry.getIcon();
+        }
     }
 
     static class ServiceItem extends BaseItem {
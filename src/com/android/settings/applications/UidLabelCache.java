@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.android.settings.applications;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.graphics.drawable.Drawable;
+import android.util.LruCache;
+
+/**
+ * Labels and unbadged icons of the uids, resolved once per process and shared by the power
+ * usage, data usage and running services screens.
+ *
+ * The cache is bounded and safe to use from any thread. The entry of a uid is dropped when one
+ * of its packages is updated or removed, and all of them when the locale changes.
+ */
+public class UidLabelCache {
+
+    private static final int MAX_ENTRIES = 100;
+
+    private static UidLabelCache sInstance;
+
+    private final LruCache<Integer, Entry> mEntries = new LruCache<>(MAX_ENTRIES);
+
+    /**
+     * The label and icon of a uid.
+     */
+    public static class Entry {
+        public final String label;
+        // The package the icon is from, or null if unknown
+        public final String packageName;
+        // Whether the uid has a single package, whose label is then the label of the uid
+        public final boolean singlePackage;
+        private final Drawable mIcon;
+
+        Entry(String label, Drawable icon, String packageName, boolean singlePackage) {
+            this.label = label;
+            this.packageName = packageName;
+            this.singlePackage = singlePackage;
+            mIcon = icon;
+        }
+
+        /**
+         * @return the icon, as a new drawable when possible so that it can be shown by several
+         *     views at once
+         */
+        public Drawable getIcon() {
+            if (mIcon == null) {
+                return null;
+            }
+            final Drawable.ConstantState state = mIcon.getConstantState();
+            return state != null ? state.newDrawable() : mIcon;
+        }
+    }
+
+    public static synchronized UidLabelCache getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new UidLabelCache();
+            sInstance.registerReceiver(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    /**
+     * Drop all the entries, if the cache has been created.
+     */
+    public static void clear() {
+        final UidLabelCache cache;
+        synchronized (UidLabelCache.class) {
+            cache = sInstance;
+        }
+        if (cache != null) {
+            cache.mEntries.evictAll();
+        }
+    }
+
+    private UidLabelCache() {
+    }
+
+    /**
+     * @return the entry of a uid, or null if it is not cached
+     */
+    public Entry get(int uid) {
+        return mEntries.get(uid);
+    }
+
+    public void put(int uid, String label, Drawable icon, String packageName,
+            boolean singlePackage) {
+        if (label == null) {
+            return;
+        }
+        mEntries.put(uid, new Entry(label, icon, packageName, singlePackage));
+    }
+
+    private void registerReceiver(Context context) {
+        final BroadcastReceiver receiver = new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                if (Intent.ACTION_LOCALE_CHANGED.equals(intent.getAction())) {
+                    mEntries.evictAll();
+                    return;
+                }
+                final int uid = intent.getIntExtra(Intent.EXTRA_UID, -1);
+                if (uid != -1) {
+                    mEntries.remove(uid);
+                } else {
+                    mEntries.evictAll();
+                }
+            }
+        };
+        final IntentFilter packageFilter = new IntentFilter();
+        packageFilter.addAction(Intent.ACTION_PACKAGE_ADDED);
+        packageFilter.addAction(Intent.ACTION_PACKAGE_CHANGED);
+        packageFilter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+        packageFilter.addDataScheme("package");
+        context.registerReceiver(receiver, packageFilter);
+        context.registerReceiver(receiver, new IntentFilter(Intent.ACTION_LOCALE_CHANGED));
+    }
+}
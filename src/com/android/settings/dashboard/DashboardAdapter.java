@@ -21,13 +21,13 @@ import android.content.Intent;
 import android.content.pm.ResolveInfo;
 import android.text.TextUtils;
 import android.content.pm.PackageManager;
-import android.graphics.drawable.Drawable;
 import android.graphics.drawable.Icon;
 import android.provider.Settings;
 import android.os.Bundle;
 import android.support.v7.widget.PopupMenu;
 import android.support.v7.widget.RecyclerView;
 import android.util.ArrayMap;
+import android.util.ArraySet;
 import android.util.TypedValue;
 import android.view.ContextThemeWrapper;
 import android.view.LayoutInflater;
@@ -76,7 +76,14 @@ public class DashboardAdapter extends RecyclerView.Adapter<DashboardAdapter.Dash
     private final List<Object> mItems = new ArrayList<>();
     private final List<Integer> mTypes = new ArrayList<>();
     private final List<Integer> mIds = new ArrayList<>();
-    private final IconCache mCache;
+    // Ids of the items by namespace and item key, stable so that changes can be animated
+    private final ArrayMap<String, Integer> mStableIds = new ArrayMap<>();
+    private final ArraySet<String> mCountedKeys = new ArraySet<>();
+    private int mNextStableId;
+    // Positions of the displayed dashboard tiles
+    private final ArrayMap<ComponentName, Integer> mTilePositions = new ArrayMap<>();
+    private final TileIconCache mCache;
+    private final SummaryCache mSummaryCache;
 
     private final Context mContext;
     private Lte4GEnabler mLte4GEnabler;
@@ -99,7 +106,13 @@ public class DashboardAdapter extends RecyclerView.Adapter<DashboardAdapter.Dash
     public DashboardAdapter(Context context, SuggestionParser parser, Bundle savedInstanceState,
                 List<Condition> conditions) {
         mContext = context;
-        mCache = new IconCache(context);
+        mCache = new TileIconCache(context);
+        mSummaryCache = new SummaryCache(context, new SummaryCache.Listener() {
+            @Override
+            public void onSummariesLoaded(ArrayMap<ComponentName, CharSequence> summaries) {
+                notifySummariesChanged(summaries);
+            }
+        });
         mLte4GEnabler = new Lte4GEnabler(mContext, new Switch(mContext));
         mSuggestionParser = parser;
         mConditions = conditions;
@@ -152,6 +165,8 @@ public class DashboardAdapter extends RecyclerView.Adapter<DashboardAdapter.Dash
         mLte4GEnablerHolder.summary.setEnabled(enabled);
         mLte4GEnablerHolder.sw.setEnabled(enabled);
         mLte4GEnablerHolder.summary.setVisibility(View.VISIBLE);
+        // Do not let the tile icon, if still loading, replace this one
+        mLte4GEnablerHolder.icon.setTag(null);
         mLte4GEnablerHolder.icon.setImageResource(enabled ? R.drawable.ic_settings_4g
             : R.drawable.ic_settings_4g_dis);
         if(!enabled) {
@@ -180,6 +195,8 @@ public class DashboardAdapter extends RecyclerView.Adapter<DashboardAdapter.Dash
 
     public void setCategories(List<DashboardCategory> categories) {
         mCategories = categories;
+        // Show the last known summaries until the summary providers set the current ones
+        mSummaryCache.applyTo(categories);
 
         // TODO: Better place for tinting?
         TypedValue tintColor = new TypedValue();
@@ -189,8 +206,7 @@ public class DashboardAdapter extends RecyclerView.Adapter<DashboardAdapter.Dash
             for (int j = 0; j < categories.get(i).tiles.size(); j++) {
                 Tile tile = categories.get(i).tiles.get(j);
 
-                if (!mContext.getPackageName().equals(
-                        tile.intent.getComponent().getPackageName())) {
+                if (isTinted(tile)) {
                     // If this drawable is coming from outside Settings, tint it to match the
                     // color.
                     tile.icon.setTint(tintColor.data);
@@ -209,8 +225,19 @@ public class DashboardAdapter extends RecyclerView.Adapter<DashboardAdapter.Dash
         return mIsShowingAll;
     }
 
-    public void notifyChanged(Tile tile) {
-        notifyDataSetChanged();
+    /**
+     * Rebind the displayed tiles whose summary changed.
+     */
+    public void notifySummariesChanged(ArrayMap<ComponentName, CharSequence> summaries) {
+        for (int i = 0; i < summaries.size(); i++) {
+            final Integer position = mTilePositions.get(summaries.keyAt(i));
+            if (position == null) {
+                continue;
+            }
+            // The displayed tile may be an older instance than the one that got the summary
+            ((Tile) mItems.get(position)).summary = summaries.valueAt(i);
+            notifyItemChanged(position);
+        }
     }
 
     public void setShowingAll(boolean showingAll) {
@@ -219,6 +246,8 @@ public class DashboardAdapter extends RecyclerView.Adapter<DashboardAdapter.Dash
     }
 
     private void recountItems() {
+        final List<Object> oldItems = new ArrayList<>(mItems);
+        final List<Integer> oldIds = new ArrayList<>(mIds);
         reset();
         boolean hasConditions = false;
         for (int i = 0; mConditions != null && i < mConditions.size(); i++) {
@@ -254,7 +283,83 @@ public class DashboardAdapter extends RecyclerView.Adapter<DashboardAdapter.Dash
                 }
             }
         }
-        notifyDataSetChanged();
+        indexTilePositions();
+        notifyItemsChanged(oldItems, oldIds);
+    }
+
+    /**
+     * Notify the changes from the previous items, so that only the views of the items that
+     * changed are rebound and the others are kept.
+     */
+    private void notifyItemsChanged(List<Object> oldItems, List<Integer> oldIds) {
+        final int oldSize = oldIds.size();
+        final int newSize = mIds.size();
+        // Length of the longest common subsequence of the old ids from i and the new ids from j
+        final int[][] common = new int[oldSize + 1][newSize + 1];
+        for (int i = oldSize - 1; i >= 0; i--) {
+            for (int j = newSize - 1; j >= 0; j--) {
+                common[i][j] = oldIds.get(i).equals(mIds.get(j)) ? common[i + 1][j + 1] + 1
+                        : Math.max(common[i + 1][j], common[i][j + 1]);
+            }
+        }
+        // The items before j already are the new ones, the following ones still are the old
+        // ones from i
+        int i = 0;
+        int j = 0;
+        while (i < oldSize || j < newSize) {
+            if (i < oldSize && j < newSize && oldIds.get(i).equals(mIds.get(j))) {
+                if (!isSameContent(mTypes.get(j), oldItems.get(i), mItems.get(j))) {
+                    notifyItemChanged(j);
+                }
+                i++;
+                j++;
+            } else if (j < newSize && (i == oldSize || common[i][j + 1] >= common[i + 1][j])) {
+                notifyItemInserted(j);
+                j++;
+            } else {
+                notifyItemRemoved(j);
+                i++;
+            }
+        }
+    }
+
+    private static boolean isSameContent(int type, Object oldItem, Object newItem) {
+        if (oldItem instanceof Tile && newItem instanceof Tile) {
+            final Tile oldTile = (Tile) oldItem;
+            final Tile newTile = (Tile) newItem;
+            return oldTile == newTile || (TextUtils.equals(oldTile.title, newTile.title)
+                    && TextUtils.equals(oldTile.summary, newTile.summary)
+                    && isSameIcon(oldTile.icon, newTile.icon));
+        } else if (oldItem instanceof DashboardCategory && newItem instanceof DashboardCategory) {
+            return TextUtils.equals(((DashboardCategory) oldItem).title,
+                    ((DashboardCategory) newItem).title);
+        }
+        // Conditions change in place and the suggestion header shows the suggestion count
+        return type == R.layout.dashboard_spacer;
+    }
+
+    private static boolean isSameIcon(Icon oldIcon, Icon newIcon) {
+        if (oldIcon == newIcon) {
+            return true;
+        }
+        return oldIcon != null && newIcon != null
+                && oldIcon.getType() == Icon.TYPE_RESOURCE
+                && newIcon.getType() == Icon.TYPE_RESOURCE
+                && oldIcon.getResId() == newIcon.getResId()
+                && TextUtils.equals(oldIcon.getResPackage(), newIcon.getResPackage());
+    }
+
+    private void indexTilePositions() {
+        mTilePositions.clear();
+        for (int i = 0; i < mItems.size(); i++) {
+            final int type = mTypes.get(i);
+            if (type == R.layout.dashboard_tile || type == R.layout.dashboard_tile_switch) {
+                final ComponentName component = ((Tile) mItems.get(i)).intent.getComponent();
+                if (!mTilePositions.containsKey(component)) {
+                    mTilePositions.put(component, i);
+                }
+            }
+        }
     }
 
     private void resetCount() {
@@ -265,6 +370,7 @@ public class DashboardAdapter extends RecyclerView.Adapter<DashboardAdapter.Dash
         mItems.clear();
         mTypes.clear();
         mIds.clear();
+        mCountedKeys.clear();
         mId = 0;
     }
 
@@ -272,12 +378,50 @@ public class DashboardAdapter extends RecyclerView.Adapter<DashboardAdapter.Dash
         if (add) {
             mItems.add(object);
             mTypes.add(type);
-            // TODO: Counting namespaces for handling of suggestions/conds appearing/disappearing.
-            mIds.add(mId + nameSpace);
+            mIds.add(getStableId(object, type, nameSpace));
         }
         mId++;
     }
 
+    /**
+     * @return an id identifying an item across recounts, whatever the items around it
+     */
+    private int getStableId(Object object, int type, int nameSpace) {
+        String key;
+        if (object instanceof Tile) {
+            key = ((Tile) object).intent.getComponent().flattenToShortString();
+        } else if (object instanceof Condition) {
+            key = object.getClass().getName();
+        } else if (object instanceof DashboardCategory) {
+            key = String.valueOf(((DashboardCategory) object).title);
+        } else {
+            // Items without data, like the spacer and the suggestion header, are one per layout
+            key = String.valueOf(type);
+        }
+        key = nameSpace + "/" + key;
+        // Tell apart items with the same key, e.g. two tiles of the same component
+        final String baseKey = key;
+        for (int n = 1; mCountedKeys.contains(key); n++) {
+            key = baseKey + "#" + n;
+        }
+        mCountedKeys.add(key);
+
+        Integer id = mStableIds.get(key);
+        if (id == null) {
+            id = mNextStableId++;
+            mStableIds.put(key, id);
+        }
+        return id;
+    }
+
+    private void notifyConditionChanged(Condition condition) {
+        // Spacers are null items
+        final int position = (condition != null) ? mItems.indexOf(condition) : -1;
+        if (position >= 0) {
+            notifyItemChanged(position);
+        }
+    }
+
     private int getDisplayableSuggestionCount() {
         final int suggestionSize = mSuggestions.size();
         return mSuggestionMode == SUGGESTION_MODE_DEFAULT
@@ -431,8 +575,12 @@ public class DashboardAdapter extends RecyclerView.Adapter<DashboardAdapter.Dash
                 && mSuggestions.size() > DEFAULT_SUGGESTION_COUNT);
     }
 
+    private boolean isTinted(Tile tile) {
+        return !mContext.getPackageName().equals(tile.intent.getComponent().getPackageName());
+    }
+
     private void onBindTile(DashboardItemHolder holder, Tile tile) {
-        holder.icon.setImageDrawable(mCache.getIcon(tile.icon));
+        mCache.loadIcon(tile.icon, isTinted(tile), holder.icon);
         holder.title.setText(tile.title);
         if (!TextUtils.isEmpty(tile.summary)) {
             holder.summary.setText(tile.summary);
@@ -498,14 +646,17 @@ public class DashboardAdapter extends RecyclerView.Adapter<DashboardAdapter.Dash
                     mExpandedCondition.getMetricsConstant());
             mExpandedCondition.onPrimaryClick();
         } else {
+            final Condition collapsedCondition = mExpandedCondition;
             mExpandedCondition = (Condition) v.getTag();
             MetricsLogger.action(mContext, MetricsEvent.ACTION_SETTINGS_CONDITION_EXPAND,
                     mExpandedCondition.getMetricsConstant());
-            notifyDataSetChanged();
+            notifyConditionChanged(collapsedCondition);
+            notifyConditionChanged(mExpandedCondition);
         }
     }
 
     public void onExpandClick(View v) {
+        final Condition collapsedCondition = mExpandedCondition;
         if (v.getTag() == mExpandedCondition) {
             MetricsLogger.action(mContext, MetricsEvent.ACTION_SETTINGS_CONDITION_COLLAPSE,
                     mExpandedCondition.getMetricsConstant());
@@ -515,7 +666,8 @@ public class DashboardAdapter extends RecyclerView.Adapter<DashboardAdapter.Dash
             MetricsLogger.action(mContext, MetricsEvent.ACTION_SETTINGS_CONDITION_EXPAND,
                     mExpandedCondition.getMetricsConstant());
         }
-        notifyDataSetChanged();
+        notifyConditionChanged(collapsedCondition);
+        notifyConditionChanged(mExpandedCondition);
     }
 
     public Object getItem(long itemId) {
@@ -550,25 +702,6 @@ public class DashboardAdapter extends RecyclerView.Adapter<DashboardAdapter.Dash
         outState.putInt(STATE_SUGGESTION_MODE, mSuggestionMode);
     }
 
-    private static class IconCache {
-
-        private final Context mContext;
-        private final ArrayMap<Icon, Drawable> mMap = new ArrayMap<>();
-
-        public IconCache(Context context) {
-            mContext = context;
-        }
-
-        public Drawable getIcon(Icon icon) {
-            Drawable drawable = mMap.get(icon);
-            if (drawable == null) {
-                drawable = icon.loadDrawable(mContext);
-                mMap.put(icon, drawable);
-            }
-            return drawable;
-        }
-    }
-
     public static class DashboardItemHolder extends RecyclerView.ViewHolder {
         public final ImageView icon;
         public final TextView title;
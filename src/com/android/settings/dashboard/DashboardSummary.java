@@ -190,7 +190,9 @@ public class DashboardSummary extends InstrumentedFragment
         long startTime = System.currentTimeMillis();
         if (hasWindowFocus) {
             mConditionManager.addListener(this);
-            mConditionManager.refreshAll();
+            // Conditions are kept up to date by the ConditionManager, only the changes made
+            // while not listening need to be shown
+            onConditionsChanged();
         } else {
             mConditionManager.remListener(this);
         }
@@ -271,12 +273,19 @@ public class DashboardSummary extends InstrumentedFragment
         protected List<Tile> doInBackground(Void... params) {
             final Context context = getContext();
             List<Tile> suggestions = mSuggestionParser.getSuggestions();
+            final int[] results = mSuggestionsChecks.checkSuggestions(suggestions);
+            final List<Tile> incomplete = new ArrayList<>(suggestions.size());
             for (int i = 0; i < suggestions.size(); i++) {
                 Tile suggestion = suggestions.get(i);
-                if (mSuggestionsChecks.isSuggestionComplete(suggestion)) {
+                if (results[i] == SuggestionsChecks.CHECK_COMPLETE) {
                     mAdapter.disableSuggestion(suggestion);
-                    suggestions.remove(i--);
-                } else if (context != null) {
+                    continue;
+                } else if (results[i] == SuggestionsChecks.CHECK_UNKNOWN) {
+                    // Checked again on the next load
+                    continue;
+                }
+                incomplete.add(suggestion);
+                if (context != null) {
                     String id = DashboardAdapter.getSuggestionIdentifier(context, suggestion);
                     if (!mSuggestionsShownLogged.contains(id)) {
                         mSuggestionsShownLogged.add(id);
@@ -285,7 +294,7 @@ public class DashboardSummary extends InstrumentedFragment
                     }
                 }
             }
-            return suggestions;
+            return incomplete;
         }
 
         @Override
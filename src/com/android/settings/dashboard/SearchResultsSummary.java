@@ -25,6 +25,9 @@ import android.database.Cursor;
 import android.graphics.drawable.Drawable;
 import android.os.AsyncTask;
 import android.os.Bundle;
+import android.os.CancellationSignal;
+import android.os.Handler;
+import android.os.OperationCanceledException;
 import android.text.TextUtils;
 import android.util.Log;
 import android.view.LayoutInflater;
@@ -44,8 +47,10 @@ import com.android.settings.R;
 import com.android.settings.SettingsActivity;
 import com.android.settings.Utils;
 import com.android.settings.search.Index;
+import com.android.settings.search.PrefixSearchIndex;
 
 import java.util.HashMap;
+import java.util.Locale;
 
 public class SearchResultsSummary extends InstrumentedFragment {
 
@@ -56,6 +61,10 @@ public class SearchResultsSummary extends InstrumentedFragment {
 
     private static final String SAVE_KEY_SHOW_RESULTS = ":settings:show_results";
 
+    // Delay before running the queries while the user is typing, so that a typing burst only
+    // queries the Index once
+    private static final long QUERY_DEBOUNCE_MILLIS = 100;
+
     private SearchView mSearchView;
 
     private ListView mResultsListView;
@@ -73,18 +82,57 @@ public class SearchResultsSummary extends InstrumentedFragment {
 
     private boolean mShowResults;
 
+    private final Handler mHandler = new Handler();
+    private volatile LastResults mLastResults;
+
     /**
      * A basic AsyncTask for updating the query results cursor
      */
     private class UpdateSearchResultsTask extends AsyncTask<String, Void, Cursor> {
+        private final CancellationSignal mCancellationSignal = new CancellationSignal();
+
+        public void cancelQuery() {
+            cancel(false);
+            mCancellationSignal.cancel();
+        }
+
         @Override
         protected Cursor doInBackground(String... params) {
-            return Index.getInstance(getActivity()).search(params[0]);
+            final String query = params[0];
+            final String localeStr = Locale.getDefault().toString();
+            final Index index = Index.getInstance(getActivity());
+            final int generation = index.getIndexGeneration();
+
+            // A query extending the last one can only match a subset of its results, as long
+            // as the Index has not changed since
+            final LastResults lastResults = mLastResults;
+            if (lastResults != null && generation == lastResults.generation
+                    && localeStr.equals(lastResults.results.getLocale())
+                    && PrefixSearchIndex.canNarrow(lastResults.query, query)) {
+                return lastResults.results.search(query);
+            }
+
+            Cursor cursor = null;
+            try {
+                cursor = index.search(query, mCancellationSignal);
+                // Run the query here rather than when the UI first asks for the count
+                cursor.getCount();
+                if (index.canNarrowSearchResults()) {
+                    mLastResults = new LastResults(query, generation,
+                            PrefixSearchIndex.fromSearchResults(localeStr, cursor));
+                }
+                return cursor;
+            } catch (OperationCanceledException e) {
+                if (cursor != null) {
+                    cursor.close();
+                }
+                return null;
+            }
         }
 
         @Override
         protected void onPostExecute(Cursor cursor) {
-            if (!isCancelled()) {
+            if (!isCancelled() && cursor != null) {
                 MetricsLogger.action(getContext(), MetricsEvent.ACTION_SEARCH_RESULTS,
                         cursor.getCount());
                 setResultsCursor(cursor);
@@ -93,28 +141,90 @@ public class SearchResultsSummary extends InstrumentedFragment {
                 cursor.close();
             }
         }
+
+        @Override
+        protected void onCancelled(Cursor cursor) {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
     }
 
     /**
      * A basic AsyncTask for updating the suggestions cursor
      */
     private class UpdateSuggestionsTask extends AsyncTask<String, Void, Cursor> {
+        private final CancellationSignal mCancellationSignal = new CancellationSignal();
+
+        public void cancelQuery() {
+            cancel(false);
+            mCancellationSignal.cancel();
+        }
+
         @Override
         protected Cursor doInBackground(String... params) {
-            return Index.getInstance(getActivity()).getSuggestions(params[0]);
+            Cursor cursor = null;
+            try {
+                cursor = Index.getInstance(getActivity()).getSuggestions(params[0],
+                        mCancellationSignal);
+                cursor.getCount();
+                return cursor;
+            } catch (OperationCanceledException e) {
+                if (cursor != null) {
+                    cursor.close();
+                }
+                return null;
+            }
         }
 
         @Override
         protected void onPostExecute(Cursor cursor) {
-            if (!isCancelled()) {
+            if (!isCancelled() && cursor != null) {
                 setSuggestionsCursor(cursor);
                 setSuggestionsVisibility(cursor.getCount() > 0);
             } else if (cursor != null) {
                 cursor.close();
             }
         }
+
+        @Override
+        protected void onCancelled(Cursor cursor) {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+    }
+
+    /**
+     * The results of the last query that went through the Index database
+     */
+    private static class LastResults {
+        public final String query;
+        // Generation of the Index when the query was run
+        public final int generation;
+        public final PrefixSearchIndex results;
+
+        public LastResults(String query, int generation, PrefixSearchIndex results) {
+            this.query = query;
+            this.generation = generation;
+            this.results = results;
+        }
     }
 
+    private final Runnable mUpdateSearchResultsRunnable = new Runnable() {
+        @Override
+        public void run() {
+            updateSearchResults();
+        }
+    };
+
+    private final Runnable mUpdateSuggestionsRunnable = new Runnable() {
+        @Override
+        public void run() {
+            updateSuggestions();
+        }
+    };
+
     @Override
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -298,14 +408,15 @@ public class SearchResultsSummary extends InstrumentedFragment {
 
         mQuery = newQuery;
 
+        clearAllTasks();
         if (TextUtils.isEmpty(mQuery)) {
             mShowResults = false;
             setResultsVisibility(false);
-            updateSuggestions();
+            mHandler.postDelayed(mUpdateSuggestionsRunnable, QUERY_DEBOUNCE_MILLIS);
         } else {
             mShowResults = true;
             setSuggestionsVisibility(false);
-            updateSearchResults();
+            mHandler.postDelayed(mUpdateSearchResultsRunnable, QUERY_DEBOUNCE_MILLIS);
         }
 
         return true;
@@ -318,8 +429,9 @@ public class SearchResultsSummary extends InstrumentedFragment {
     }
 
     private void clearSuggestions() {
+        mHandler.removeCallbacks(mUpdateSuggestionsRunnable);
         if (mUpdateSuggestionsTask != null) {
-            mUpdateSuggestionsTask.cancel(false);
+            mUpdateSuggestionsTask.cancelQuery();
             mUpdateSuggestionsTask = null;
         }
         setSuggestionsCursor(null);
@@ -336,10 +448,12 @@ public class SearchResultsSummary extends InstrumentedFragment {
     }
 
     private void clearResults() {
+        mHandler.removeCallbacks(mUpdateSearchResultsRunnable);
         if (mUpdateSearchResultsTask != null) {
-            mUpdateSearchResultsTask.cancel(false);
+            mUpdateSearchResultsTask.cancelQuery();
             mUpdateSearchResultsTask = null;
         }
+        mLastResults = null;
         setResultsCursor(null);
     }
 
@@ -369,12 +483,14 @@ public class SearchResultsSummary extends InstrumentedFragment {
     }
 
     private void clearAllTasks() {
+        mHandler.removeCallbacks(mUpdateSearchResultsRunnable);
+        mHandler.removeCallbacks(mUpdateSuggestionsRunnable);
         if (mUpdateSearchResultsTask != null) {
-            mUpdateSearchResultsTask.cancel(false);
+            mUpdateSearchResultsTask.cancelQuery();
             mUpdateSearchResultsTask = null;
         }
         if (mUpdateSuggestionsTask != null) {
-            mUpdateSuggestionsTask.cancel(false);
+            mUpdateSuggestionsTask.cancelQuery();
             mUpdateSuggestionsTask = null;
         }
     }
@@ -22,12 +22,19 @@ import android.app.KeyguardManager;
 import android.app.NotificationManager;
 import android.app.WallpaperManager;
 import android.app.admin.DevicePolicyManager;
+import android.content.BroadcastReceiver;
 import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
 import android.hardware.fingerprint.FingerprintManager;
 import android.os.Bundle;
 import android.os.IBinder;
 import android.os.RemoteException;
 import android.os.ServiceManager;
+import android.os.SystemClock;
+import android.telephony.CarrierConfigManager;
+import android.util.ArrayMap;
+import android.util.Log;
 
 import com.android.ims.ImsManager;
 import com.android.settings.Settings.FingerprintEnrollSuggestionActivity;
@@ -39,17 +46,148 @@ import com.android.settings.WallpaperSuggestionActivity;
 import com.android.settings.overlay.FeatureFactory;
 import com.android.settingslib.drawer.Tile;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 /**
  * The Home of all stupidly dynamic Settings Suggestions checks.
+ *
+ * The checks of the Settings suggestions whose result has a change broadcast are memoized for
+ * the process, until such a broadcast is received or a suggestion has been followed, see
+ * {@link #invalidateCache()}.
  */
 public class SuggestionsChecks {
+    private static final String TAG = "SuggestionsChecks";
+
+    /** The suggestion has been followed, or does not apply. */
+    public static final int CHECK_COMPLETE = 0;
+    /** The suggestion is to be shown. */
+    public static final int CHECK_INCOMPLETE = 1;
+    /** The check did not finish in time or failed: the suggestion is left out for now. */
+    public static final int CHECK_UNKNOWN = 2;
+
+    // A check not done this long after it started has an unknown result
+    private static final long CHECK_TIMEOUT_MILLIS = 500;
+
+    private static final int CHECK_THREADS = 4;
+    private static final int MAX_CHECK_THREADS = 8;
+    private static final int KEEP_ALIVE_SECONDS = 30;
+
+    // The suggestions whose check result is memoized. The fingerprint and screen lock ones are
+    // not, as no broadcast tells when they are set up outside of the suggestions.
+    private static final List<String> CACHED_CHECKS = Arrays.asList(
+            ZenModeAutomationSuggestionActivity.class.getName(),
+            WallpaperSuggestionActivity.class.getName(),
+            WifiCallingSuggestionActivity.class.getName());
+
+    // Results of the checks by suggestion class name, guarded by itself
+    private static final ArrayMap<String, Boolean> sCompleteCache = new ArrayMap<>();
+    // Incremented on each invalidation, so that the checks running meanwhile are not cached
+    private static int sCacheGeneration;
+    private static BroadcastReceiver sInvalidateReceiver;
+    private static ThreadPoolExecutor sExecutor;
 
     private final Context mContext;
 
     public SuggestionsChecks(Context context) {
         mContext = context.getApplicationContext();
+        registerInvalidateReceiver(mContext);
+    }
+
+    /**
+     * Check a list of suggestions concurrently, each check having its own timeout.
+     *
+     * @return {@link #CHECK_COMPLETE}, {@link #CHECK_INCOMPLETE} or {@link #CHECK_UNKNOWN} for
+     * each suggestion, in the order of the list
+     */
+    public int[] checkSuggestions(List<Tile> suggestions) {
+        final int N = suggestions.size();
+        final int[] results = new int[N];
+        final ArrayList<Future<Boolean>> checks = new ArrayList<>(N);
+        final long[] deadlines = new long[N];
+        for (int i = 0; i < N; i++) {
+            final Tile suggestion = suggestions.get(i);
+            final String className = suggestion.intent.getComponent().getClassName();
+            final Boolean cached;
+            synchronized (sCompleteCache) {
+                cached = sCompleteCache.get(className);
+            }
+            checks.add(null);
+            if (cached != null) {
+                results[i] = cached ? CHECK_COMPLETE : CHECK_INCOMPLETE;
+                continue;
+            }
+            try {
+                // The executor never queues checks, so each one starts when submitted
+                checks.set(i, getExecutor().submit(new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() {
+                        return checkSuggestionComplete(suggestion, className);
+                    }
+                }));
+                deadlines[i] = SystemClock.elapsedRealtime() + CHECK_TIMEOUT_MILLIS;
+            } catch (RejectedExecutionException e) {
+                // All the threads are stuck on earlier checks
+                results[i] = CHECK_UNKNOWN;
+                Log.w(TAG, "Cannot start checking " + suggestion.intent.getComponent());
+            }
+        }
+
+        for (int i = 0; i < N; i++) {
+            final Future<Boolean> check = checks.get(i);
+            if (check == null) {
+                continue;
+            }
+            try {
+                final long timeout = Math.max(0, deadlines[i] - SystemClock.elapsedRealtime());
+                results[i] = check.get(timeout, TimeUnit.MILLISECONDS)
+                        ? CHECK_COMPLETE : CHECK_INCOMPLETE;
+            } catch (TimeoutException e) {
+                // Still cached once done
+                results[i] = CHECK_UNKNOWN;
+                Log.w(TAG, "Timed out checking " + suggestions.get(i).intent.getComponent());
+            } catch (InterruptedException | ExecutionException e) {
+                results[i] = CHECK_UNKNOWN;
+                Log.w(TAG, "Cannot check " + suggestions.get(i).intent.getComponent(), e);
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Forget the memoized checks, e.g. after a suggestion has been followed.
+     */
+    public static void invalidateCache() {
+        synchronized (sCompleteCache) {
+            sCompleteCache.clear();
+            sCacheGeneration++;
+        }
+    }
+
+    private boolean checkSuggestionComplete(Tile suggestion, String className) {
+        final int generation;
+        synchronized (sCompleteCache) {
+            generation = sCacheGeneration;
+        }
+        final boolean complete = isSuggestionComplete(suggestion);
+        if (CACHED_CHECKS.contains(className)) {
+            synchronized (sCompleteCache) {
+                if (generation == sCacheGeneration) {
+                    sCompleteCache.put(className, complete);
+                }
+            }
+        }
+        return complete;
     }
 
     public boolean isSuggestionComplete(Tile suggestion) {
@@ -129,6 +267,38 @@ public class SuggestionsChecks {
         return (dpmFlags & DevicePolicyManager.KEYGUARD_DISABLE_FINGERPRINT) == 0;
     }
 
+    private static synchronized void registerInvalidateReceiver(Context context) {
+        if (sInvalidateReceiver != null) {
+            return;
+        }
+        sInvalidateReceiver = new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                invalidateCache();
+            }
+        };
+        final IntentFilter filter = new IntentFilter();
+        filter.addAction(Intent.ACTION_WALLPAPER_CHANGED);
+        filter.addAction(NotificationManager.ACTION_NOTIFICATION_POLICY_CHANGED);
+        filter.addAction(NotificationManager.ACTION_INTERRUPTION_FILTER_CHANGED);
+        filter.addAction(DevicePolicyManager.ACTION_DEVICE_POLICY_MANAGER_STATE_CHANGED);
+        filter.addAction(CarrierConfigManager.ACTION_CARRIER_CONFIG_CHANGED);
+        filter.addAction(Intent.ACTION_USER_PRESENT);
+        // Kept registered as long as the process lives, like the cache
+        context.registerReceiver(sInvalidateReceiver, filter);
+    }
+
+    private static synchronized ThreadPoolExecutor getExecutor() {
+        if (sExecutor == null) {
+            // A check stuck past its timeout must not delay the next ones: rather than being
+            // queued, checks get a new thread when all the threads are busy, up to a bound
+            sExecutor = new ThreadPoolExecutor(CHECK_THREADS, MAX_CHECK_THREADS,
+                    KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new SynchronousQueue<Runnable>());
+            sExecutor.allowCoreThreadTimeOut(true);
+        }
+        return sExecutor;
+    }
+
     private final IWallpaperManagerCallback mCallback = new IWallpaperManagerCallback.Stub() {
         @Override
         public void onWallpaperChanged() throws RemoteException {
@@ -0,0 +1,289 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.dashboard;
+
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.AsyncTask;
+import android.os.UserManager;
+import android.text.Spanned;
+import android.util.ArrayMap;
+import android.util.ArraySet;
+
+import com.android.settingslib.drawer.DashboardCategory;
+import com.android.settingslib.drawer.Tile;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * The last summaries set by the {@link SummaryLoader.SummaryProvider}s, persisted by tile
+ * component and locale, so that the dashboard shows them right away while the providers
+ * compute the current ones.
+ *
+ * The summaries are loaded once per process and locale in the background, where the ones of
+ * other locales are dropped, and then kept in memory with their spans. Only summaries without
+ * spans are persisted. As summaries show e.g. the connected network or the user name, they are
+ * persisted to credential protected storage, and neither loaded nor persisted until the user is
+ * unlocked. All the methods must be called from the main thread.
+ */
+class SummaryCache {
+
+    private static final String PREFS_NAME = "dashboard_summary_cache";
+    private static final char SEPARATOR = '/';
+
+    /**
+     * Notified when the summaries have been loaded after the tiles were given to
+     * {@link #applyTo}.
+     */
+    interface Listener {
+        /**
+         * @param summaries the summaries set to the tiles, by tile component
+         */
+        void onSummariesLoaded(ArrayMap<ComponentName, CharSequence> summaries);
+    }
+
+    // Summaries of the current locale by tile component, null until loaded
+    private static ArrayMap<ComponentName, CharSequence> sSummaries;
+    private static String sLocale;
+    private static boolean sLoading;
+    // Summaries set while loading, which take precedence over the loaded ones
+    private static final ArrayMap<ComponentName, CharSequence> sUpdates = new ArrayMap<>();
+    // Caches waiting for the summaries to be loaded
+    private static final ArrayList<SummaryCache> sWaiting = new ArrayList<>();
+
+    // Credential protected storage context
+    private final Context mContext;
+    private final Listener mListener;
+    private List<DashboardCategory> mWaitingCategories;
+
+    public SummaryCache(Context context) {
+        this(context, null);
+    }
+
+    public SummaryCache(Context context, Listener listener) {
+        mContext = context.getApplicationContext().createCredentialProtectedStorageContext();
+        mListener = listener;
+    }
+
+    /**
+     * Set the cached summaries to the tiles having one, and forget the summaries of the tiles
+     * that are gone. If the summaries are not loaded yet, they are set once loaded and the
+     * listener is notified.
+     */
+    public void applyTo(List<DashboardCategory> categories) {
+        if (isLoaded()) {
+            apply(categories);
+            prune(categories);
+            return;
+        }
+        if (!isUserUnlocked(mContext)) {
+            return;
+        }
+        mWaitingCategories = categories;
+        if (!sWaiting.contains(this)) {
+            sWaiting.add(this);
+        }
+        load(mContext);
+    }
+
+    /**
+     * Remember summaries, and persist them asynchronously.
+     */
+    public void putAll(ArrayMap<ComponentName, CharSequence> summaries) {
+        if (isLoaded()) {
+            sSummaries.putAll((Map<ComponentName, CharSequence>) summaries);
+        } else {
+            sUpdates.putAll((Map<ComponentName, CharSequence>) summaries);
+        }
+        if (!isUserUnlocked(mContext)) {
+            return;
+        }
+        final String locale = getLocale();
+        final ArrayMap<String, String> values = new ArrayMap<>();
+        for (int i = 0; i < summaries.size(); i++) {
+            final CharSequence summary = summaries.valueAt(i);
+            // Spans cannot be persisted: such summaries are only kept in memory
+            values.put(getKey(locale, summaries.keyAt(i)),
+                    summary != null && !hasSpans(summary) ? summary.toString() : null);
+        }
+        write(mContext, values);
+    }
+
+    private ArrayMap<ComponentName, CharSequence> apply(List<DashboardCategory> categories) {
+        final ArrayMap<ComponentName, CharSequence> applied = new ArrayMap<>();
+        for (int i = 0; i < categories.size(); i++) {
+            final List<Tile> tiles = categories.get(i).tiles;
+            for (int j = 0; j < tiles.size(); j++) {
+                final Tile tile = tiles.get(j);
+                final ComponentName component = tile.intent.getComponent();
+                final CharSequence summary = sSummaries.get(component);
+                if (summary != null && !summary.equals(tile.summary)) {
+                    tile.summary = summary;
+                    applied.put(component, summary);
+                }
+            }
+        }
+        return applied;
+    }
+
+    private void prune(List<DashboardCategory> categories) {
+        final ArraySet<ComponentName> components = new ArraySet<>();
+        for (int i = 0; i < categories.size(); i++) {
+            final List<Tile> tiles = categories.get(i).tiles;
+            for (int j = 0; j < tiles.size(); j++) {
+                components.add(tiles.get(j).intent.getComponent());
+            }
+        }
+        if (components.isEmpty()) {
+            // The tiles are not known yet
+            return;
+        }
+        final String locale = getLocale();
+        final ArrayMap<String, String> removed = new ArrayMap<>();
+        for (int i = sSummaries.size() - 1; i >= 0; i--) {
+            if (!components.contains(sSummaries.keyAt(i))) {
+                removed.put(getKey(locale, sSummaries.keyAt(i)), null);
+                sSummaries.removeAt(i);
+            }
+        }
+        if (!removed.isEmpty()) {
+            write(mContext, removed);
+        }
+    }
+
+    private static boolean isLoaded() {
+        return sSummaries != null && getLocale().equals(sLocale);
+    }
+
+    private static void load(final Context context) {
+        if (sLoading) {
+            return;
+        }
+        sLoading = true;
+        final String locale = getLocale();
+        // The serial executor keeps the load ordered with the writes
+        new AsyncTask<Void, Void, ArrayMap<ComponentName, CharSequence>>() {
+            @Override
+            protected ArrayMap<ComponentName, CharSequence> doInBackground(Void... params) {
+                // Summaries used to be persisted to device protected storage
+                context.createDeviceProtectedStorageContext().deleteSharedPreferences(PREFS_NAME);
+                final SharedPreferences prefs = getPrefs(context);
+                final ArrayMap<ComponentName, CharSequence> result = new ArrayMap<>();
+                final SharedPreferences.Editor editor = prefs.edit();
+                boolean pruned = false;
+                final String prefix = locale + SEPARATOR;
+                for (Map.Entry<String, ?> entry : prefs.getAll().entrySet()) {
+                    final String key = entry.getKey();
+                    final ComponentName component = key.startsWith(prefix)
+                            ? ComponentName.unflattenFromString(key.substring(prefix.length()))
+                            : null;
+                    if (component == null || !(entry.getValue() instanceof String)) {
+                        // Summary of another locale, or not readable
+                        editor.remove(key);
+                        pruned = true;
+                        continue;
+                    }
+                    result.put(component, (String) entry.getValue());
+                }
+                if (pruned) {
+                    editor.apply();
+                }
+                return result;
+            }
+
+            @Override
+            protected void onPostExecute(ArrayMap<ComponentName, CharSequence> result) {
+                sLoading = false;
+                if (!locale.equals(getLocale())) {
+                    // The locale changed meanwhile
+                    sUpdates.clear();
+                    if (!sWaiting.isEmpty()) {
+                        load(context);
+                    }
+                    return;
+                }
+                result.putAll((Map<ComponentName, CharSequence>) sUpdates);
+                sUpdates.clear();
+                sSummaries = result;
+                sLocale = locale;
+                final ArrayList<SummaryCache> waiting = new ArrayList<>(sWaiting);
+                sWaiting.clear();
+                for (int i = 0; i < waiting.size(); i++) {
+                    waiting.get(i).onLoaded();
+                }
+            }
+        }.execute();
+    }
+
+    private void onLoaded() {
+        final List<DashboardCategory> categories = mWaitingCategories;
+        mWaitingCategories = null;
+        if (categories == null) {
+            return;
+        }
+        final ArrayMap<ComponentName, CharSequence> applied = apply(categories);
+        prune(categories);
+        if (mListener != null && !applied.isEmpty()) {
+            mListener.onSummariesLoaded(applied);
+        }
+    }
+
+    /**
+     * Write or, for null values, remove preferences in the background.
+     */
+    private static void write(final Context context, final ArrayMap<String, String> values) {
+        AsyncTask.execute(new Runnable() {
+            @Override
+            public void run() {
+                final SharedPreferences.Editor editor = getPrefs(context).edit();
+                for (int i = 0; i < values.size(); i++) {
+                    if (values.valueAt(i) != null) {
+                        editor.putString(values.keyAt(i), values.valueAt(i));
+                    } else {
+                        editor.remove(values.keyAt(i));
+                    }
+                }
+                editor.apply();
+            }
+        });
+    }
+
+    private static SharedPreferences getPrefs(Context context) {
+        return context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    private static boolean isUserUnlocked(Context context) {
+        return context.getSystemService(UserManager.class).isUserUnlocked();
+    }
+
+    private static boolean hasSpans(CharSequence text) {
+        return text instanceof Spanned
+                && ((Spanned) text).getSpans(0, text.length(), Object.class).length > 0;
+    }
+
+    private static String getLocale() {
+        return Locale.getDefault().toLanguageTag();
+    }
+
+    private static String getKey(String locale, ComponentName component) {
+        return locale + SEPARATOR + component.flattenToShortString();
+    }
+}
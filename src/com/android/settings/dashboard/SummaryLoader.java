@@ -22,12 +22,13 @@ import android.content.IntentFilter;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.HandlerThread;
-import android.os.Looper;
 import android.os.Message;
 import android.os.Process;
+import android.text.TextUtils;
 import android.util.ArrayMap;
 import android.util.ArraySet;
 import android.util.Log;
+import android.view.Choreographer;
 
 import com.android.settings.SettingsActivity;
 import com.android.settingslib.drawer.DashboardCategory;
@@ -44,38 +45,56 @@ public class SummaryLoader {
 
     public static final String SUMMARY_PROVIDER_FACTORY = "SUMMARY_PROVIDER_FACTORY";
 
+    // Providers are spread over a few worker threads so that slow ones do not hold the others
+    private static final int CPU_COUNT = Runtime.getRuntime().availableProcessors();
+    private static final int WORKER_COUNT = Math.max(2, Math.min(CPU_COUNT - 1, 4));
+
     private final Activity mActivity;
     private final ArrayMap<SummaryProvider, ComponentName> mSummaryMap = new ArrayMap<>();
     private final List<Tile> mTiles = new ArrayList<>();
 
-    private final Worker mWorker;
-    private final Handler mHandler;
-    private final HandlerThread mWorkerThread;
+    private final Worker[] mWorkers;
+    private final Choreographer mChoreographer;
+    private final SummaryCache mSummaryCache;
+
+    // Summaries set since the last frame, applied together on the next one
+    private final ArrayMap<ComponentName, CharSequence> mPendingSummaries = new ArrayMap<>();
+    private boolean mFrameScheduled;
 
     private DashboardAdapter mAdapter;
     private boolean mListening;
-    private boolean mWorkerListening;
     private ArraySet<BroadcastReceiver> mReceivers = new ArraySet<>();
 
     public SummaryLoader(Activity activity, List<DashboardCategory> categories) {
-        mHandler = new Handler();
-        mWorkerThread = new HandlerThread("SummaryLoader", Process.THREAD_PRIORITY_BACKGROUND);
-        mWorkerThread.start();
-        mWorker = new Worker(mWorkerThread.getLooper());
+        mChoreographer = Choreographer.getInstance();
+        mWorkers = new Worker[WORKER_COUNT];
+        for (int i = 0; i < WORKER_COUNT; i++) {
+            HandlerThread thread = new HandlerThread("SummaryLoader-" + i,
+                    Process.THREAD_PRIORITY_BACKGROUND);
+            thread.start();
+            mWorkers[i] = new Worker(thread);
+        }
         mActivity = activity;
+        mSummaryCache = new SummaryCache(activity);
+        int count = 0;
         for (int i = 0; i < categories.size(); i++) {
             List<Tile> tiles = categories.get(i).tiles;
             for (int j = 0; j < tiles.size(); j++) {
                 Tile tile = tiles.get(j);
-                mWorker.obtainMessage(Worker.MSG_GET_PROVIDER, tile).sendToTarget();
+                // A provider is created and started on the same worker thread
+                Worker worker = mWorkers[count++ % WORKER_COUNT];
+                worker.obtainMessage(Worker.MSG_GET_PROVIDER, tile).sendToTarget();
             }
         }
     }
 
     public void release() {
-        mWorkerThread.quitSafely();
-        // Make sure we aren't listening.
-        setListeningW(false);
+        mChoreographer.removeFrameCallback(mFrameCallback);
+        for (Worker worker : mWorkers) {
+            worker.quit();
+            // Make sure we aren't listening.
+            worker.setListeningW(false);
+        }
     }
 
     public void setAdapter(DashboardAdapter adapter) {
@@ -83,34 +102,79 @@ public class SummaryLoader {
     }
 
     public void setSummary(SummaryProvider provider, final CharSequence summary) {
-        final ComponentName component= mSummaryMap.get(provider);
-        mHandler.post(new Runnable() {
-            @Override
-            public void run() {
-                // Since tiles are not always cached (like on locale change for instance),
-                // we need to always get the latest one.
-                if (!(mActivity instanceof SettingsDrawerActivity)) {
-                    if (DEBUG) {
-                        Log.d(TAG, "Can't get category list.");
-                    }
-                    return;
-                }
-                final List<DashboardCategory> categories =
-                        ((SettingsDrawerActivity) mActivity).getDashboardCategories();
-                final Tile tile = getTileFromCategory(categories, component);
-                if (tile == null) {
-                    if (DEBUG) {
-                        Log.d(TAG, "Can't find tile for " + component);
-                    }
-                    return;
-                }
+        final ComponentName component;
+        synchronized (mSummaryMap) {
+            component = mSummaryMap.get(provider);
+        }
+        if (component == null) {
+            if (DEBUG) {
+                Log.d(TAG, "Unknown provider " + provider);
+            }
+            return;
+        }
+        synchronized (mPendingSummaries) {
+            mPendingSummaries.put(component, summary);
+            if (!mFrameScheduled) {
+                mFrameScheduled = true;
+                mChoreographer.postFrameCallback(mFrameCallback);
+            }
+        }
+    }
+
+    private final Choreographer.FrameCallback mFrameCallback = new Choreographer.FrameCallback() {
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            final ArrayMap<ComponentName, CharSequence> summaries;
+            synchronized (mPendingSummaries) {
+                summaries = new ArrayMap<>(mPendingSummaries);
+                mPendingSummaries.clear();
+                mFrameScheduled = false;
+            }
+            applySummaries(summaries);
+        }
+    };
+
+    /**
+     * Set the summaries of the tiles, and only rebind the displayed tiles whose summary changed.
+     */
+    private void applySummaries(ArrayMap<ComponentName, CharSequence> summaries) {
+        // Since tiles are not always cached (like on locale change for instance),
+        // we need to always get the latest one.
+        if (!(mActivity instanceof SettingsDrawerActivity)) {
+            if (DEBUG) {
+                Log.d(TAG, "Can't get category list.");
+            }
+            return;
+        }
+        final ArrayMap<ComponentName, Tile> tiles = getTilesByComponent(
+                ((SettingsDrawerActivity) mActivity).getDashboardCategories());
+        final ArrayMap<ComponentName, CharSequence> changed = new ArrayMap<>();
+        for (int i = 0; i < summaries.size(); i++) {
+            final ComponentName component = summaries.keyAt(i);
+            final CharSequence summary = summaries.valueAt(i);
+            final Tile tile = tiles.get(component);
+            if (tile == null) {
                 if (DEBUG) {
-                    Log.d(TAG, "setSummary " + tile.title + " - " + summary);
+                    Log.d(TAG, "Can't find tile for " + component);
                 }
-                tile.summary = summary;
-                mAdapter.notifyChanged(tile);
+                continue;
             }
-        });
+            if (TextUtils.equals(tile.summary, summary)) {
+                continue;
+            }
+            if (DEBUG) {
+                Log.d(TAG, "setSummary " + tile.title + " - " + summary);
+            }
+            tile.summary = summary;
+            changed.put(component, summary);
+        }
+        if (changed.isEmpty()) {
+            return;
+        }
+        mSummaryCache.putAll(changed);
+        if (mAdapter != null) {
+            mAdapter.notifySummariesChanged(changed);
+        }
     }
 
     /**
@@ -124,8 +188,10 @@ public class SummaryLoader {
             mActivity.unregisterReceiver(mReceivers.valueAt(i));
         }
         mReceivers.clear();
-        mWorker.removeMessages(Worker.MSG_SET_LISTENING);
-        mWorker.obtainMessage(Worker.MSG_SET_LISTENING, listening ? 1 : 0, 0).sendToTarget();
+        for (Worker worker : mWorkers) {
+            worker.removeMessages(Worker.MSG_SET_LISTENING);
+            worker.obtainMessage(Worker.MSG_SET_LISTENING, listening ? 1 : 0, 0).sendToTarget();
+        }
     }
 
     private SummaryProvider getSummaryProvider(Tile tile) {
@@ -144,6 +210,11 @@ public class SummaryLoader {
             if (DEBUG) Log.d(TAG, "No fragment specified for " + tile.intent.getComponent());
             return null;
         }
+        SummaryProviderFactory registeredFactory = SummaryProviderRegistry.getFactory(clsName);
+        if (registeredFactory != null) {
+            return registeredFactory.createSummaryProvider(mActivity, this);
+        }
+        if (DEBUG) Log.d(TAG, "No registered factory for " + clsName);
         try {
             Class<?> cls = Class.forName(clsName);
             Field field = cls.getField(SUMMARY_PROVIDER_FACTORY);
@@ -183,33 +254,14 @@ public class SummaryLoader {
         });
     }
 
-    private synchronized void setListeningW(boolean listening) {
-        if (mWorkerListening == listening) return;
-        mWorkerListening = listening;
-        if (DEBUG) Log.d(TAG, "Listening " + listening);
-        for (SummaryProvider p : mSummaryMap.keySet()) {
-            try {
-                p.setListening(listening);
-            } catch (Exception e) {
-                Log.d(TAG, "Problem in setListening", e);
-            }
-        }
-    }
-
-    private synchronized void makeProviderW(Tile tile) {
-        SummaryProvider provider = getSummaryProvider(tile);
-        if (provider != null) {
-            if (DEBUG) Log.d(TAG, "Creating " + tile);
-            mSummaryMap.put(provider, tile.intent.getComponent());
-        }
-    }
-
-    private Tile getTileFromCategory(List<DashboardCategory> categories, ComponentName component) {
+    private ArrayMap<ComponentName, Tile> getTilesByComponent(
+            List<DashboardCategory> categories) {
+        final ArrayMap<ComponentName, Tile> result = new ArrayMap<>();
         if (categories == null) {
             if (DEBUG) {
                 Log.d(TAG, "Category is null, can't find tile");
             }
-            return null;
+            return result;
         }
         final int categorySize = categories.size();
         for (int i = 0; i < categorySize; i++) {
@@ -217,12 +269,14 @@ public class SummaryLoader {
             final int tileCount = category.tiles.size();
             for (int j = 0; j < tileCount; j++) {
                 final Tile tile = category.tiles.get(j);
-                if (component.equals(tile.intent.getComponent())) {
-                    return tile;
+                final ComponentName component = tile.intent.getComponent();
+                // Keep the first tile of a component, as the previous linear search did
+                if (!result.containsKey(component)) {
+                    result.put(component, tile);
                 }
             }
         }
-        return null;
+        return result;
     }
 
     public interface SummaryProvider {
@@ -237,8 +291,17 @@ public class SummaryLoader {
         private static final int MSG_GET_PROVIDER = 1;
         private static final int MSG_SET_LISTENING = 2;
 
-        public Worker(Looper looper) {
-            super(looper);
+        private final HandlerThread mThread;
+        private final List<SummaryProvider> mProviders = new ArrayList<>();
+        private boolean mWorkerListening;
+
+        public Worker(HandlerThread thread) {
+            super(thread.getLooper());
+            mThread = thread;
+        }
+
+        public void quit() {
+            mThread.quitSafely();
         }
 
         @Override
@@ -254,5 +317,29 @@ public class SummaryLoader {
                     break;
             }
         }
+
+        private synchronized void setListeningW(boolean listening) {
+            if (mWorkerListening == listening) return;
+            mWorkerListening = listening;
+            if (DEBUG) Log.d(TAG, "Listening " + listening + " on " + mThread.getName());
+            for (SummaryProvider p : mProviders) {
+                try {
+                    p.setListening(listening);
+                } catch (Exception e) {
+                    Log.d(TAG, "Problem in setListening", e);
+                }
+            }
+        }
+
+        private synchronized void makeProviderW(Tile tile) {
+            SummaryProvider provider = getSummaryProvider(tile);
+            if (provider != null) {
+                if (DEBUG) Log.d(TAG, "Creating " + tile);
+                synchronized (mSummaryMap) {
+                    mSummaryMap.put(provider, tile.intent.getComponent());
+                }
+                mProviders.add(provider);
+            }
+        }
     }
 }
@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.dashboard;
+
+import android.util.ArrayMap;
+
+import com.android.settings.DateTimeSettings;
+import com.android.settings.DeviceInfoSettings;
+import com.android.settings.DisplaySettings;
+import com.android.settings.applications.ManageApplications;
+import com.android.settings.applications.NotificationApps;
+import com.android.settings.applications.ProcessStatsSummary;
+import com.android.settings.bluetooth.BluetoothSettings;
+import com.android.settings.datausage.DataUsageSummary;
+import com.android.settings.deviceinfo.StorageSettings;
+import com.android.settings.fuelgauge.PowerUsageSummary;
+import com.android.settings.inputmethod.InputMethodAndLanguageSettings;
+import com.android.settings.location.LocationSettings;
+import com.android.settings.nfc.PaymentSettings;
+import com.android.settings.notification.SoundSettings;
+import com.android.settings.print.PrintSettingsFragment;
+import com.android.settings.users.UserSettings;
+import com.android.settings.wifi.WifiSettings;
+
+/**
+ * The {@link SummaryLoader.SummaryProviderFactory} of the fragments providing a dashboard
+ * summary, by fragment class name.
+ *
+ * Fragments declaring a {@link SummaryLoader#SUMMARY_PROVIDER_FACTORY} field must be added here
+ * so that their provider can be created without reflection, which SummaryProviderRegistryTest
+ * checks for the fragments of the tiles and of the search index. Fragments missing here are still
+ * looked up by reflection.
+ */
+public final class SummaryProviderRegistry {
+
+    private static final ArrayMap<String, SummaryLoader.SummaryProviderFactory> sFactories =
+            new ArrayMap<>();
+
+    static {
+        addFactory(BluetoothSettings.class.getName(), BluetoothSettings.SUMMARY_PROVIDER_FACTORY);
+        addFactory(DataUsageSummary.class.getName(), DataUsageSummary.SUMMARY_PROVIDER_FACTORY);
+        addFactory(DateTimeSettings.class.getName(), DateTimeSettings.SUMMARY_PROVIDER_FACTORY);
+        addFactory(DeviceInfoSettings.class.getName(),
+                DeviceInfoSettings.SUMMARY_PROVIDER_FACTORY);
+        addFactory(DisplaySettings.class.getName(), DisplaySettings.SUMMARY_PROVIDER_FACTORY);
+        addFactory(InputMethodAndLanguageSettings.class.getName(),
+                InputMethodAndLanguageSettings.SUMMARY_PROVIDER_FACTORY);
+        addFactory(LocationSettings.class.getName(), LocationSettings.SUMMARY_PROVIDER_FACTORY);
+        addFactory(ManageApplications.class.getName(),
+                ManageApplications.SUMMARY_PROVIDER_FACTORY);
+        addFactory(NotificationApps.class.getName(), NotificationApps.SUMMARY_PROVIDER_FACTORY);
+        addFactory(PaymentSettings.class.getName(), PaymentSettings.SUMMARY_PROVIDER_FACTORY);
+        addFactory(PowerUsageSummary.class.getName(), PowerUsageSummary.SUMMARY_PROVIDER_FACTORY);
+        addFactory(PrintSettingsFragment.class.getName(),
+                PrintSettingsFragment.SUMMARY_PROVIDER_FACTORY);
+        addFactory(ProcessStatsSummary.class.getName(),
+                ProcessStatsSummary.SUMMARY_PROVIDER_FACTORY);
+        addFactory(SoundSettings.class.getName(), SoundSettings.SUMMARY_PROVIDER_FACTORY);
+        addFactory(StorageSettings.class.getName(), StorageSettings.SUMMARY_PROVIDER_FACTORY);
+        addFactory(UserSettings.class.getName(), UserSettings.SUMMARY_PROVIDER_FACTORY);
+        addFactory(WifiSettings.class.getName(), WifiSettings.SUMMARY_PROVIDER_FACTORY);
+    }
+
+    private SummaryProviderRegistry() {
+    }
+
+    private static void addFactory(String className, SummaryLoader.SummaryProviderFactory factory) {
+        sFactories.put(className, factory);
+    }
+
+    /**
+     * @return the factory registered for a fragment, or null if there is none
+     */
+    public static SummaryLoader.SummaryProviderFactory getFactory(String className) {
+        return sFactories.get(className);
+    }
+}
@@ -0,0 +1,355 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.dashboard;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.drawable.BitmapDrawable;
+import android.graphics.drawable.ColorDrawable;
+import android.graphics.drawable.Drawable;
+import android.graphics.drawable.Icon;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.ArrayMap;
+import android.util.Log;
+import android.util.LruCache;
+import android.util.TypedValue;
+import android.widget.ImageView;
+
+import com.android.settings.R;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Loads the icons of the dashboard tiles off the UI thread.
+ *
+ * Resource icons are rasterized at the tile icon size and kept in a memory cache bounded by
+ * bytes and shared by all the dashboards of the process. They are also persisted in the cache
+ * directory, keyed by the version of the package hosting them, so that a cold start does not
+ * load them again from the other APKs. Other icons cannot be identified across dashboards and
+ * are only loaded off the UI thread. A transparent placeholder is shown until an icon is ready.
+ * The package versions are looked up off the UI thread and forgotten, together with the files
+ * of the package, when the package changes: an icon found in memory is shown right away, and
+ * loaded again if its package has changed since.
+ */
+class TileIconCache {
+    private static final String TAG = "TileIconCache";
+
+    private static final String DIRECTORY = "tile_icons";
+    private static final String FILE_EXTENSION = ".png";
+    // Separates the parts of the file names, as it cannot be part of a package name
+    private static final char SEPARATOR = '@';
+
+    private static final int MAX_MEMORY_CACHE_BYTES = 4 * 1024 * 1024;
+
+    private static final int LOADER_THREADS = 2;
+    private static final int KEEP_ALIVE_SECONDS = 30;
+
+    private static LruCache<String, CachedIcon> sMemoryCache;
+    private static ThreadPoolExecutor sExecutor;
+    // Versions of the packages hosting icons, guarded by itself
+    private static final ArrayMap<String, String> sPackageVersions = new ArrayMap<>();
+    private static BroadcastReceiver sPackageReceiver;
+
+    private final Context mContext;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final Drawable mPlaceholder = new ColorDrawable(Color.TRANSPARENT);
+    private final int mIconSize;
+    // Accent color of the icons of the tiles from outside Settings
+    private final int mTint;
+    private final File mDirectory;
+
+    public TileIconCache(Context context) {
+        mContext = context;
+        mIconSize = context.getResources().getDimensionPixelSize(
+                R.dimen.dashboard_tile_image_size);
+        final TypedValue tintColor = new TypedValue();
+        context.getTheme().resolveAttribute(com.android.internal.R.attr.colorAccent,
+                tintColor, true);
+        mTint = tintColor.data;
+        mDirectory = getDirectory(context);
+        registerPackageReceiver(context.getApplicationContext());
+    }
+
+    /**
+     * Show an icon in a view, right away if it is in memory or else once it has been loaded.
+     *
+     * @param tinted whether the icon is tinted with the accent color
+     */
+    public void loadIcon(final Icon icon, final boolean tinted, final ImageView view) {
+        final Object key = getKey(icon, tinted);
+        final CachedIcon cached = (key instanceof String) ? getMemoryCache().get((String) key)
+                : null;
+        if (cached != null) {
+            view.setTag(null);
+            view.setImageDrawable(new BitmapDrawable(mContext.getResources(), cached.bitmap));
+            if (cached.version == null || cached.version.equals(getKnownPackageVersion(icon))) {
+                return;
+            }
+            // Check the package version in the background, it is still up to date most often
+        } else {
+            view.setImageDrawable(mPlaceholder);
+        }
+
+        view.setTag(key);
+        getExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                final String version = (icon.getType() == Icon.TYPE_RESOURCE)
+                        ? getPackageVersion(icon.getResPackage()) : null;
+                if (cached != null && (version == null || version.equals(cached.version))) {
+                    return;
+                }
+                final Bitmap bitmap = load(icon, tinted, key, version);
+                if (bitmap == null) {
+                    return;
+                }
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (key instanceof String) {
+                            getMemoryCache().put((String) key, new CachedIcon(bitmap, version));
+                        }
+                        // The view may have been bound to another tile meanwhile
+                        if (key.equals(view.getTag())) {
+                            view.setTag(null);
+                            view.setImageDrawable(
+                                    new BitmapDrawable(mContext.getResources(), bitmap));
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    private Bitmap load(Icon icon, boolean tinted, Object key, String version) {
+        final File file = (version != null)
+                ? new File(mDirectory, getFileName(icon, key, version)) : null;
+        if (file != null && file.exists()) {
+            final Bitmap bitmap = BitmapFactory.decodeFile(file.getPath());
+            if (bitmap != null) {
+                return bitmap;
+            }
+        }
+
+        final Drawable drawable = icon.loadDrawable(mContext);
+        if (drawable == null) {
+            return null;
+        }
+        if (tinted) {
+            drawable.mutate().setTint(mTint);
+        }
+        final Bitmap bitmap = rasterize(drawable);
+        if (file != null) {
+            save(bitmap, file, icon.getResPackage(), version);
+        }
+        return bitmap;
+    }
+
+    private Bitmap rasterize(Drawable drawable) {
+        final Bitmap bitmap = Bitmap.createBitmap(mIconSize, mIconSize, Bitmap.Config.ARGB_8888);
+        int width = drawable.getIntrinsicWidth();
+        int height = drawable.getIntrinsicHeight();
+        if (width <= 0 || height <= 0) {
+            width = height = mIconSize;
+        }
+        // Same as the centerInside scale type of the tile icons
+        final float scale = Math.min((float) mIconSize / width, (float) mIconSize / height);
+        final int scaledWidth = Math.round(width * scale);
+        final int scaledHeight = Math.round(height * scale);
+        final int left = (mIconSize - scaledWidth) / 2;
+        final int top = (mIconSize - scaledHeight) / 2;
+        drawable.setBounds(left, top, left + scaledWidth, top + scaledHeight);
+        drawable.draw(new Canvas(bitmap));
+        return bitmap;
+    }
+
+    /**
+     * Write an icon file, and delete the files of the previous versions of its package.
+     */
+    private void save(Bitmap bitmap, File file, String packageName, String version) {
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+            Log.w(TAG, "Cannot create " + mDirectory);
+            return;
+        }
+        deleteFiles(mDirectory, packageName, version);
+
+        final File tmp = new File(mDirectory, file.getName() + ".tmp");
+        try {
+            final FileOutputStream out = new FileOutputStream(tmp);
+            try {
+                bitmap.compress(Bitmap.CompressFormat.PNG, 100, out);
+            } finally {
+                out.close();
+            }
+            if (!tmp.renameTo(file)) {
+                tmp.delete();
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot save " + file, e);
+            tmp.delete();
+        }
+    }
+
+    /**
+     * Delete the icon files of a package, except those of a version if not null.
+     */
+    private static void deleteFiles(File directory, String packageName, String version) {
+        final String packagePrefix = packageName + SEPARATOR;
+        final String versionPrefix = packagePrefix + version + SEPARATOR;
+        final String[] names = directory.list();
+        for (int i = 0; names != null && i < names.length; i++) {
+            if (names[i].startsWith(packagePrefix)
+                    && (version == null || !names[i].startsWith(versionPrefix))) {
+                new File(directory, names[i]).delete();
+            }
+        }
+    }
+
+    private static File getDirectory(Context context) {
+        return new File(context.getCacheDir(), DIRECTORY);
+    }
+
+    /**
+     * @return the key of an icon, a String for the resource icons kept in the memory cache.
+     *     Resource icons are keyed by their resource, the density and their tint, but not by the
+     *     version of their package so that the key can be computed without querying the package
+     *     manager. Other icons are keyed by themselves, only to match their view.
+     */
+    private Object getKey(Icon icon, boolean tinted) {
+        if (icon.getType() != Icon.TYPE_RESOURCE) {
+            return icon;
+        }
+        return icon.getResPackage() + SEPARATOR + icon.getResId() + SEPARATOR
+                + mContext.getResources().getDisplayMetrics().densityDpi
+                + (tinted ? SEPARATOR + Integer.toHexString(mTint) : "");
+    }
+
+    /**
+     * @return the name of the file persisting a resource icon
+     */
+    private String getFileName(Icon icon, Object key, String version) {
+        final String packageName = icon.getResPackage();
+        return packageName + SEPARATOR + version
+                + ((String) key).substring(packageName.length()) + FILE_EXTENSION;
+    }
+
+    /**
+     * @return the version of the package of a resource icon if it has already been looked up,
+     *     without querying the package manager, or null
+     */
+    private static String getKnownPackageVersion(Icon icon) {
+        synchronized (sPackageVersions) {
+            return sPackageVersions.get(icon.getResPackage());
+        }
+    }
+
+    private String getPackageVersion(String packageName) {
+        synchronized (sPackageVersions) {
+            if (sPackageVersions.containsKey(packageName)) {
+                return sPackageVersions.get(packageName);
+            }
+        }
+        String version;
+        try {
+            final PackageInfo info = mContext.getPackageManager().getPackageInfo(packageName, 0);
+            version = info.versionCode + "-" + info.lastUpdateTime;
+        } catch (PackageManager.NameNotFoundException e) {
+            version = null;
+        }
+        synchronized (sPackageVersions) {
+            sPackageVersions.put(packageName, version);
+        }
+        return version;
+    }
+
+    private static synchronized void registerPackageReceiver(final Context context) {
+        if (sPackageReceiver != null) {
+            return;
+        }
+        sPackageReceiver = new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                final String packageName = intent.getData().getSchemeSpecificPart();
+                synchronized (sPackageVersions) {
+                    sPackageVersions.remove(packageName);
+                }
+                final File directory = getDirectory(context);
+                getExecutor().execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        deleteFiles(directory, packageName, null);
+                    }
+                });
+            }
+        };
+        final IntentFilter filter = new IntentFilter();
+        filter.addAction(Intent.ACTION_PACKAGE_ADDED);
+        filter.addAction(Intent.ACTION_PACKAGE_CHANGED);
+        filter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+        filter.addDataScheme("package");
+        // Kept registered as long as the process lives, like the caches
+        context.registerReceiver(sPackageReceiver, filter);
+    }
+
+    private static synchronized LruCache<String, CachedIcon> getMemoryCache() {
+        if (sMemoryCache == null) {
+            final int maxBytes = (int) Math.min(MAX_MEMORY_CACHE_BYTES,
+                    Runtime.getRuntime().maxMemory() / 32);
+            sMemoryCache = new LruCache<String, CachedIcon>(maxBytes) {
+                @Override
+                protected int sizeOf(String key, CachedIcon value) {
+                    return value.bitmap.getByteCount();
+                }
+            };
+        }
+        return sMemoryCache;
+    }
+
+    private static synchronized ThreadPoolExecutor getExecutor() {
+        if (sExecutor == null) {
+            sExecutor = new ThreadPoolExecutor(LOADER_THREADS, LOADER_THREADS,
+                    KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+            sExecutor.allowCoreThreadTimeOut(true);
+        }
+        return sExecutor;
+    }
+
+    private static class CachedIcon {
+        final Bitmap bitmap;
+        // Version of the package of the icon when it was loaded, null if unknown
+        final String version;
+
+        CachedIcon(Bitmap bitmap, String version) {
+            this.bitmap = bitmap;
+            this.version = version;
+        }
+    }
+}
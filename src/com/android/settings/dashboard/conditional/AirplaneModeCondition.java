@@ -18,6 +18,7 @@ package com.android.settings.dashboard.conditional;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
+import android.content.IntentFilter;
 import android.graphics.drawable.Icon;
 import android.net.ConnectivityManager;
 import com.android.internal.logging.MetricsProto.MetricsEvent;
@@ -32,8 +33,13 @@ public class AirplaneModeCondition extends Condition {
     }
 
     @Override
-    public void refreshState() {
-        setActive(WirelessUtils.isAirplaneModeOn(mManager.getContext()));
+    protected boolean queryActive() {
+        return WirelessUtils.isAirplaneModeOn(mManager.getContext());
+    }
+
+    @Override
+    protected IntentFilter getRefreshFilter() {
+        return new IntentFilter(Intent.ACTION_AIRPLANE_MODE_CHANGED);
     }
 
     @Override
@@ -86,8 +92,7 @@ public class AirplaneModeCondition extends Condition {
         @Override
         public void onReceive(Context context, Intent intent) {
             if (Intent.ACTION_AIRPLANE_MODE_CHANGED.equals(intent.getAction())) {
-                ConditionManager.get(context).getCondition(AirplaneModeCondition.class)
-                        .refreshState();
+                ConditionManager.get(context, false).markDirty(AirplaneModeCondition.class);
             }
         }
     }
@@ -16,7 +16,9 @@
 package com.android.settings.dashboard.conditional;
 
 import android.content.Intent;
+import android.content.IntentFilter;
 import android.graphics.drawable.Icon;
+import android.net.ConnectivityManager;
 import android.net.NetworkPolicyManager;
 import com.android.internal.logging.MetricsProto.MetricsEvent;
 import com.android.settings.R;
@@ -29,8 +31,13 @@ public class BackgroundDataCondition extends Condition {
     }
 
     @Override
-    public void refreshState() {
-        setActive(NetworkPolicyManager.from(mManager.getContext()).getRestrictBackground());
+    protected boolean queryActive() {
+        return NetworkPolicyManager.from(mManager.getContext()).getRestrictBackground();
+    }
+
+    @Override
+    protected IntentFilter getRefreshFilter() {
+        return new IntentFilter(ConnectivityManager.ACTION_RESTRICT_BACKGROUND_CHANGED);
     }
 
     @Override
@@ -15,6 +15,7 @@
  */
 package com.android.settings.dashboard.conditional;
 
+import android.content.IntentFilter;
 import android.graphics.drawable.Icon;
 import android.os.PowerManager;
 import com.android.internal.logging.MetricsProto.MetricsEvent;
@@ -28,9 +29,14 @@ public class BatterySaverCondition extends Condition {
     }
 
     @Override
-    public void refreshState() {
+    protected boolean queryActive() {
         PowerManager powerManager = mManager.getContext().getSystemService(PowerManager.class);
-        setActive(powerManager.isPowerSaveMode());
+        return powerManager.isPowerSaveMode();
+    }
+
+    @Override
+    protected IntentFilter getRefreshFilter() {
+        return new IntentFilter(PowerManager.ACTION_POWER_SAVE_MODE_CHANGED);
     }
 
     @Override
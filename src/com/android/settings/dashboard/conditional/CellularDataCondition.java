@@ -13,6 +13,7 @@ package com.android.settings.dashboard.conditional;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
+import android.content.IntentFilter;
 import android.graphics.drawable.Icon;
 import android.net.ConnectivityManager;
 import android.telephony.TelephonyManager;
@@ -28,16 +29,23 @@ public class CellularDataCondition extends Condition {
     }
 
     @Override
-    public void refreshState() {
+    protected boolean queryActive() {
         ConnectivityManager connectivity = mManager.getContext().getSystemService(
                 ConnectivityManager.class);
         TelephonyManager telephony = mManager.getContext().getSystemService(TelephonyManager.class);
         if (!connectivity.isNetworkSupported(ConnectivityManager.TYPE_MOBILE)
                 || telephony.getSimState() != TelephonyManager.SIM_STATE_READY) {
-            setActive(false);
-            return;
+            return false;
         }
-        setActive(!telephony.getDataEnabled());
+        return !telephony.getDataEnabled();
+    }
+
+    @Override
+    protected IntentFilter getRefreshFilter() {
+        IntentFilter filter = new IntentFilter(
+                TelephonyIntents.ACTION_ANY_DATA_CONNECTION_STATE_CHANGED);
+        filter.addAction(TelephonyIntents.ACTION_SIM_STATE_CHANGED);
+        return filter;
     }
 
     @Override
@@ -93,8 +101,7 @@ public class CellularDataCondition extends Condition {
         public void onReceive(Context context, Intent intent) {
             if (TelephonyIntents.ACTION_ANY_DATA_CONNECTION_STATE_CHANGED.equals(
                     intent.getAction())) {
-                ConditionManager.get(context).getCondition(CellularDataCondition.class)
-                        .refreshState();
+                ConditionManager.get(context, false).markDirty(CellularDataCondition.class);
             }
         }
     }
@@ -17,6 +17,7 @@
 package com.android.settings.dashboard.conditional;
 
 import android.content.ComponentName;
+import android.content.IntentFilter;
 import android.content.pm.PackageManager;
 import android.graphics.drawable.Icon;
 import android.os.PersistableBundle;
@@ -134,7 +135,42 @@ public abstract class Condition {
     }
 
     // State.
-    public abstract void refreshState();
+    /**
+     * Refresh the state of the condition on the calling thread.
+     */
+    public void refreshState() {
+        applyState(queryState());
+    }
+
+    /**
+     * Read from the system whether the condition is active. The {@link ConditionManager} calls
+     * it off the main thread, so it must not touch the UI.
+     */
+    protected abstract boolean queryActive();
+
+    /**
+     * Read the state of the condition from the system, off the main thread like
+     * {@link #queryActive}. Conditions also showing other state override it, together with
+     * {@link #applyState}, so that the whole state is set at once on the main thread.
+     */
+    protected Object queryState() {
+        return queryActive();
+    }
+
+    /**
+     * Set a state returned by {@link #queryState}.
+     */
+    protected void applyState(Object state) {
+        setActive((Boolean) state);
+    }
+
+    /**
+     * @return the broadcasts after which the {@link ConditionManager} refreshes the condition,
+     * or null if the condition does not depend on broadcasts.
+     */
+    protected IntentFilter getRefreshFilter() {
+        return null;
+    }
 
     public abstract int getMetricsConstant();
 
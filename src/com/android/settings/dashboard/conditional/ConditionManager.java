@@ -15,21 +15,33 @@
  */
 package com.android.settings.dashboard.conditional;
 
+import android.content.BroadcastReceiver;
 import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
 import android.os.AsyncTask;
+import android.os.Handler;
+import android.os.Looper;
 import android.os.PersistableBundle;
+import android.util.ArrayMap;
+import android.util.AtomicFile;
 import android.util.Log;
+import android.util.Pair;
 import android.util.Xml;
 
 import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
 import org.xmlpull.v1.XmlSerializer;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileReader;
-import java.io.FileWriter;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
@@ -47,14 +59,59 @@ public class ConditionManager {
     private static final String TAG_CONDITION = "c";
     private static final String ATTR_CLASS = "cls";
 
+    // Changes within this delay are saved together
+    private static final long SAVE_DELAY_MILLIS = 500;
+    // Conditions made dirty within this delay are refreshed together
+    private static final long REFRESH_DELAY_MILLIS = 100;
+
     private static ConditionManager sInstance;
 
     private final Context mContext;
     private final ArrayList<Condition> mConditions;
-    private File mXmlFile;
+    private AtomicFile mXmlFile;
+    // Content of the file as last read or written, only used on the AsyncTask serial executor
+    // and by the loader before any save is scheduled
+    private byte[] mSavedBytes;
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final Runnable mSaveRunnable = new Runnable() {
+        @Override
+        public void run() {
+            saveToXml();
+        }
+    };
 
     private final ArrayList<ConditionListener> mListeners = new ArrayList<>();
 
+    // Broadcasts after which each condition must be refreshed
+    private final ArrayMap<Condition, IntentFilter> mRefreshFilters = new ArrayMap<>();
+    // Conditions to refresh, only used on the main thread
+    private final ArrayList<Condition> mDirtyConditions = new ArrayList<>();
+    private boolean mUpdatingStates;
+    private boolean mChangedWhileUpdating;
+
+    private final BroadcastReceiver mRefreshReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            // Initial sticky broadcasts refresh the conditions too, as they may have changed
+            // since they were queried by the loader
+            final String action = intent.getAction();
+            final int N = mRefreshFilters.size();
+            for (int i = 0; i < N; i++) {
+                if (mRefreshFilters.valueAt(i).hasAction(action)) {
+                    markDirty(mRefreshFilters.keyAt(i));
+                }
+            }
+        }
+    };
+
+    private final Runnable mRefreshRunnable = new Runnable() {
+        @Override
+        public void run() {
+            refreshDirtyConditions();
+        }
+    };
+
     private ConditionManager(Context context, boolean loadConditionsNow) {
         mContext = context;
         mConditions = new ArrayList<>();
@@ -66,19 +123,111 @@ public class ConditionManager {
         }
     }
 
+    /**
+     * Refresh all the conditions, off the main thread. Conditions are otherwise refreshed when
+     * the broadcasts they depend on are received.
+     */
     public void refreshAll() {
         final int N = mConditions.size();
         for (int i = 0; i < N; i++) {
-            mConditions.get(i).refreshState();
+            markDirty(mConditions.get(i));
+        }
+    }
+
+    /**
+     * Refresh a condition off the main thread, together with the other conditions made dirty
+     * meanwhile. Nothing is done if the conditions are not loaded yet, as they are all refreshed
+     * once loaded.
+     */
+    public void markDirty(Class<? extends Condition> clz) {
+        final Condition condition = getCondition(clz);
+        if (condition != null) {
+            markDirty(condition);
+        }
+    }
+
+    private void markDirty(Condition condition) {
+        if (mDirtyConditions.contains(condition)) {
+            return;
+        }
+        mDirtyConditions.add(condition);
+        if (mDirtyConditions.size() == 1) {
+            mHandler.postDelayed(mRefreshRunnable, REFRESH_DELAY_MILLIS);
+        }
+    }
+
+    private void refreshDirtyConditions() {
+        final ArrayList<Condition> conditions = new ArrayList<>(mDirtyConditions);
+        mDirtyConditions.clear();
+        AsyncTask.execute(new Runnable() {
+            @Override
+            public void run() {
+                final Object[] states = queryStates(conditions);
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        updateStates(conditions, states);
+                    }
+                });
+            }
+        });
+    }
+
+    private static Object[] queryStates(List<Condition> conditions) {
+        final int N = conditions.size();
+        final Object[] states = new Object[N];
+        for (int i = 0; i < N; i++) {
+            states[i] = conditions.get(i).queryState();
+        }
+        return states;
+    }
+
+    /**
+     * Apply the states queried for conditions, notifying the listeners once if any changed.
+     */
+    private void updateStates(List<Condition> conditions, Object[] states) {
+        mUpdatingStates = true;
+        mChangedWhileUpdating = false;
+        try {
+            final int N = conditions.size();
+            for (int i = 0; i < N; i++) {
+                conditions.get(i).applyState(states[i]);
+            }
+        } finally {
+            mUpdatingStates = false;
+        }
+        if (mChangedWhileUpdating) {
+            notifyListeners();
+        }
+    }
+
+    private void registerRefreshReceiver() {
+        final IntentFilter filter = new IntentFilter();
+        final int N = mConditions.size();
+        for (int i = 0; i < N; i++) {
+            final Condition condition = mConditions.get(i);
+            final IntentFilter conditionFilter = condition.getRefreshFilter();
+            if (conditionFilter == null) {
+                continue;
+            }
+            mRefreshFilters.put(condition, conditionFilter);
+            for (int j = 0; j < conditionFilter.countActions(); j++) {
+                filter.addAction(conditionFilter.getAction(j));
+            }
+        }
+        if (filter.countActions() > 0) {
+            // Kept registered as long as the process lives, so that no change is missed
+            // while the dashboard is not showing.
+            mContext.registerReceiver(mRefreshReceiver, filter);
         }
     }
 
-    private void readFromXml(File xmlFile, ArrayList<Condition> conditions) {
-        if (DEBUG) Log.d(TAG, "Reading from " + xmlFile.toString());
+    private void readFromXml(AtomicFile xmlFile, ArrayList<Condition> conditions) {
+        if (DEBUG) Log.d(TAG, "Reading from " + xmlFile.getBaseFile().toString());
         try {
+            final byte[] bytes = xmlFile.readFully();
             XmlPullParser parser = Xml.newPullParser();
-            FileReader in = new FileReader(xmlFile);
-            parser.setInput(in);
+            parser.setInput(new ByteArrayInputStream(bytes), StandardCharsets.UTF_8.name());
             int state = parser.getEventType();
 
             while (state != XmlPullParser.END_DOCUMENT) {
@@ -99,39 +248,88 @@ public class ConditionManager {
                 }
                 state = parser.next();
             }
-            in.close();
+            mSavedBytes = bytes;
+        } catch (FileNotFoundException e) {
+            // Nothing saved yet
         } catch (XmlPullParserException | IOException | ClassNotFoundException e) {
             Log.w(TAG, "Problem reading " + FILE_NAME, e);
         }
     }
 
+    /**
+     * Save the state of the conditions, coalescing the changes happening within
+     * SAVE_DELAY_MILLIS.
+     */
+    private void scheduleSave() {
+        mHandler.removeCallbacks(mSaveRunnable);
+        mHandler.postDelayed(mSaveRunnable, SAVE_DELAY_MILLIS);
+    }
+
     private void saveToXml() {
-        if (DEBUG) Log.d(TAG, "Writing to " + mXmlFile.toString());
+        if (mXmlFile == null) {
+            // Still loading
+            scheduleSave();
+            return;
+        }
+        // Conditions are only read here, on the main thread. The file is written in background.
+        final ArrayList<Pair<String, PersistableBundle>> states = new ArrayList<>();
+        final int N = mConditions.size();
+        for (int i = 0; i < N; i++) {
+            PersistableBundle bundle = new PersistableBundle();
+            if (mConditions.get(i).saveState(bundle)) {
+                states.add(Pair.create(mConditions.get(i).getClass().getSimpleName(), bundle));
+            }
+        }
+        AsyncTask.execute(new Runnable() {
+            @Override
+            public void run() {
+                writeToXml(states);
+            }
+        });
+    }
+
+    private void writeToXml(List<Pair<String, PersistableBundle>> states) {
+        final byte[] bytes;
         try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
             XmlSerializer serializer = Xml.newSerializer();
-            FileWriter writer = new FileWriter(mXmlFile);
-            serializer.setOutput(writer);
+            serializer.setOutput(out, StandardCharsets.UTF_8.name());
 
             serializer.startDocument("UTF-8", true);
             serializer.startTag("", TAG_CONDITIONS);
 
-            final int N = mConditions.size();
+            final int N = states.size();
             for (int i = 0; i < N; i++) {
-                PersistableBundle bundle = new PersistableBundle();
-                if (mConditions.get(i).saveState(bundle)) {
-                    serializer.startTag("", TAG_CONDITION);
-                    final String clz = mConditions.get(i).getClass().getSimpleName();
-                    serializer.attribute("", ATTR_CLASS, clz);
-                    bundle.saveToXml(serializer);
-                    serializer.endTag("", TAG_CONDITION);
-                }
+                serializer.startTag("", TAG_CONDITION);
+                serializer.attribute("", ATTR_CLASS, states.get(i).first);
+                states.get(i).second.saveToXml(serializer);
+                serializer.endTag("", TAG_CONDITION);
             }
 
             serializer.endTag("", TAG_CONDITIONS);
-            serializer.flush();
-            writer.close();
+            serializer.endDocument();
+            bytes = out.toByteArray();
         } catch (XmlPullParserException | IOException e) {
             Log.w(TAG, "Problem writing " + FILE_NAME, e);
+            return;
+        }
+        if (Arrays.equals(bytes, mSavedBytes)) {
+            if (DEBUG) Log.d(TAG, "Skipping unchanged " + FILE_NAME);
+            return;
+        }
+
+        if (DEBUG) Log.d(TAG, "Writing to " + mXmlFile.getBaseFile().toString());
+        FileOutputStream stream = null;
+        try {
+            stream = mXmlFile.startWrite();
+            stream.write(bytes);
+            mXmlFile.finishWrite(stream);
+            mSavedBytes = bytes;
+        } catch (IOException e) {
+            Log.w(TAG, "Problem writing " + FILE_NAME, e);
+            if (stream != null) {
+                mXmlFile.failWrite(stream);
+            }
         }
     }
 
@@ -209,8 +407,16 @@ public class ConditionManager {
     }
 
     public void notifyChanged(Condition condition) {
-        saveToXml();
+        scheduleSave();
         Collections.sort(mConditions, CONDITION_COMPARATOR);
+        if (mUpdatingStates) {
+            mChangedWhileUpdating = true;
+            return;
+        }
+        notifyListeners();
+    }
+
+    private void notifyListeners() {
         final int N = mListeners.size();
         for (int i = 0; i < N; i++) {
             mListeners.get(i).onConditionsChanged();
@@ -227,22 +433,26 @@ public class ConditionManager {
     }
 
     private class ConditionLoader extends AsyncTask<Void, Void, ArrayList<Condition>> {
+        private AtomicFile mLoadedXmlFile;
+        private Object[] mStates;
+
         @Override
         protected ArrayList<Condition> doInBackground(Void... params) {
             ArrayList<Condition> conditions = new ArrayList<>();
-            mXmlFile = new File(mContext.getFilesDir(), FILE_NAME);
-            if (mXmlFile.exists()) {
-                readFromXml(mXmlFile, conditions);
-            }
+            mLoadedXmlFile = new AtomicFile(new File(mContext.getFilesDir(), FILE_NAME));
+            readFromXml(mLoadedXmlFile, conditions);
             addMissingConditions(conditions);
+            mStates = queryStates(conditions);
             return conditions;
         }
 
         @Override
         protected void onPostExecute(ArrayList<Condition> conditions) {
+            mXmlFile = mLoadedXmlFile;
             mConditions.clear();
             mConditions.addAll(conditions);
-            refreshAll();
+            updateStates(new ArrayList<>(conditions), mStates);
+            registerRefreshReceiver();
         }
     }
 
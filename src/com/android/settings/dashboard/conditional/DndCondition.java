@@ -21,6 +21,7 @@ import android.app.StatusBarManager;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
+import android.content.IntentFilter;
 import android.graphics.drawable.Icon;
 import android.os.PersistableBundle;
 import android.provider.Settings;
@@ -30,6 +31,8 @@ import android.service.notification.ZenModeConfig;
 import com.android.internal.logging.MetricsProto.MetricsEvent;
 import com.android.settings.R;
 
+import java.util.Objects;
+
 public class DndCondition extends Condition {
 
     private static final String TAG = "DndCondition";
@@ -43,17 +46,39 @@ public class DndCondition extends Condition {
     }
 
     @Override
-    public void refreshState() {
+    protected boolean queryActive() {
+        return ((ZenState) queryState()).zen != Settings.Global.ZEN_MODE_OFF;
+    }
+
+    @Override
+    protected Object queryState() {
         NotificationManager notificationManager =
                 mManager.getContext().getSystemService(NotificationManager.class);
-        mZen = notificationManager.getZenMode();
-        boolean zenModeEnabled = mZen != Settings.Global.ZEN_MODE_OFF;
-        if (zenModeEnabled) {
-            mConfig = notificationManager.getZenModeConfig();
-        } else {
-            mConfig = null;
+        final int zen = notificationManager.getZenMode();
+        return new ZenState(zen, zen != Settings.Global.ZEN_MODE_OFF
+                ? notificationManager.getZenModeConfig() : null);
+    }
+
+    @Override
+    protected void applyState(Object state) {
+        final ZenState zenState = (ZenState) state;
+        final boolean changed = mZen != zenState.zen || !Objects.equals(mConfig, zenState.config);
+        mZen = zenState.zen;
+        mConfig = zenState.config;
+        final boolean active = mZen != Settings.Global.ZEN_MODE_OFF;
+        if (changed && active == isActive()) {
+            // The title or summary changed
+            notifyChanged();
         }
-        setActive(zenModeEnabled);
+        setActive(active);
+    }
+
+    @Override
+    protected IntentFilter getRefreshFilter() {
+        IntentFilter filter = new IntentFilter(
+                NotificationManager.ACTION_INTERRUPTION_FILTER_CHANGED_INTERNAL);
+        filter.addAction(NotificationManager.ACTION_NOTIFICATION_POLICY_CHANGED);
+        return filter;
     }
 
     @Override
@@ -139,11 +164,7 @@ public class DndCondition extends Condition {
         public void onReceive(Context context, Intent intent) {
             if (NotificationManager.ACTION_INTERRUPTION_FILTER_CHANGED_INTERNAL
                     .equals(intent.getAction())) {
-                final Condition condition =
-                        ConditionManager.get(context).getCondition(DndCondition.class);
-                if (condition != null) {
-                    condition.refreshState();
-                }
+                ConditionManager.get(context, false).markDirty(DndCondition.class);
             }
         }
     }
@@ -152,4 +173,14 @@ public class DndCondition extends Condition {
     protected boolean shouldAlwaysListenToBroadcast() {
         return true;
     }
+
+    private static class ZenState {
+        final int zen;
+        final ZenModeConfig config;
+
+        ZenState(int zen, ZenModeConfig config) {
+            this.zen = zen;
+            this.config = config;
+        }
+    }
 }
@@ -18,6 +18,7 @@ package com.android.settings.dashboard.conditional;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
+import android.content.IntentFilter;
 import android.graphics.drawable.Icon;
 import android.net.ConnectivityManager;
 import android.net.wifi.WifiConfiguration;
@@ -43,9 +44,13 @@ public class HotspotCondition extends Condition {
     }
 
     @Override
-    public void refreshState() {
-        boolean wifiTetherEnabled = mWifiManager.isWifiApEnabled();
-        setActive(wifiTetherEnabled);
+    protected boolean queryActive() {
+        return mWifiManager.isWifiApEnabled();
+    }
+
+    @Override
+    protected IntentFilter getRefreshFilter() {
+        return new IntentFilter(WifiManager.WIFI_AP_STATE_CHANGED_ACTION);
     }
 
     @Override
@@ -122,8 +127,7 @@ public class HotspotCondition extends Condition {
         @Override
         public void onReceive(Context context, Intent intent) {
             if (WifiManager.WIFI_AP_STATE_CHANGED_ACTION.equals(intent.getAction())) {
-                ConditionManager.get(context).getCondition(HotspotCondition.class)
-                        .refreshState();
+                ConditionManager.get(context, false).markDirty(HotspotCondition.class);
             }
         }
     }
@@ -76,8 +76,8 @@ public final class NightDisplayCondition extends Condition
     }
 
     @Override
-    public void refreshState() {
-        setActive(mController.isActivated());
+    protected boolean queryActive() {
+        return mController.isActivated();
     }
 
     @Override
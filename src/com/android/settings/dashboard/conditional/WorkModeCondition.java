@@ -18,6 +18,7 @@ package com.android.settings.dashboard.conditional;
 
 import android.content.Context;
 import android.content.Intent;
+import android.content.IntentFilter;
 import android.content.pm.UserInfo;
 import android.graphics.drawable.Icon;
 import android.os.UserHandle;
@@ -31,31 +32,43 @@ import java.util.List;
 public class WorkModeCondition extends Condition {
 
     private UserManager mUm;
-    private UserHandle mUserHandle;
+    // Set off the main thread when the condition is refreshed by the ConditionManager
+    private volatile UserHandle mUserHandle;
 
     public WorkModeCondition(ConditionManager conditionManager) {
         super(conditionManager);
         mUm = (UserManager) mManager.getContext().getSystemService(Context.USER_SERVICE);
     }
 
-    private void updateUserHandle() {
+    private UserHandle updateUserHandle() {
         List<UserInfo> profiles = mUm.getProfiles(UserHandle.myUserId());
         final int profilesCount = profiles.size();
-        mUserHandle = null;
+        UserHandle userHandle = null;
         for (int i = 0; i < profilesCount; i++) {
             UserInfo userInfo = profiles.get(i);
             if (userInfo.isManagedProfile()) {
                 // We assume there's only one managed profile, otherwise UI needs to change.
-                mUserHandle = userInfo.getUserHandle();
+                userHandle = userInfo.getUserHandle();
                 break;
             }
         }
+        mUserHandle = userHandle;
+        return userHandle;
     }
 
     @Override
-    public void refreshState() {
-        updateUserHandle();
-        setActive(mUserHandle != null && mUm.isQuietModeEnabled(mUserHandle));
+    protected boolean queryActive() {
+        UserHandle userHandle = updateUserHandle();
+        return userHandle != null && mUm.isQuietModeEnabled(userHandle);
+    }
+
+    @Override
+    protected IntentFilter getRefreshFilter() {
+        IntentFilter filter = new IntentFilter(Intent.ACTION_MANAGED_PROFILE_AVAILABLE);
+        filter.addAction(Intent.ACTION_MANAGED_PROFILE_UNAVAILABLE);
+        filter.addAction(Intent.ACTION_MANAGED_PROFILE_ADDED);
+        filter.addAction(Intent.ACTION_MANAGED_PROFILE_REMOVED);
+        return filter;
     }
 
     @Override
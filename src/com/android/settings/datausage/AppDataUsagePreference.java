@@ -16,11 +16,13 @@ package com.android.settings.datausage;
 
 import android.content.Context;
 import android.os.AsyncTask;
+import android.os.UserHandle;
 import android.support.v7.preference.Preference;
 import android.support.v7.preference.PreferenceViewHolder;
 import android.text.format.Formatter;
 import android.view.View;
 import android.widget.ProgressBar;
+import com.android.settings.applications.UidLabelCache;
 import com.android.settingslib.AppItem;
 import com.android.settingslib.net.UidDetail;
 import com.android.settingslib.net.UidDetailProvider;
@@ -87,8 +89,14 @@ public class AppDataUsagePreference extends Preference {
         public static void bindView(UidDetailProvider provider, AppItem item,
                 AppDataUsagePreference target) {
             final UidDetail cachedDetail = provider.getUidDetail(item.key, false);
+            final UidLabelCache.Entry sharedEntry = isShared(item.key)
+                    ? UidLabelCache.getInstance(target.getContext()).get(item.key) : null;
             if (cachedDetail != null) {
                 bindView(cachedDetail, target);
+            } else if (sharedEntry != null && sharedEntry.singlePackage) {
+                // Multiple package uids are labeled differently by the battery usage
+                target.setIcon(sharedEntry.getIcon());
+                target.setTitle(sharedEntry.label);
             } else {
                 new UidDetailTask(provider, item, target).executeOnExecutor(
                         AsyncTask.THREAD_POOL_EXECUTOR);
@@ -110,9 +118,28 @@ public class AppDataUsagePreference extends Preference {
             bindView(null, mTarget);
         }
 
+        /**
+         * Whether the label and icon of a uid are the same as in {@link UidLabelCache}, which
+         * is the case for the apps of the current user as the others' icons are badged.
+         */
+        private static boolean isShared(int uid) {
+            return UserHandle.isApp(uid) && UserHandle.getUserId(uid) == UserHandle.myUserId();
+        }
+
         @Override
         protected UidDetail doInBackground(Void... params) {
-            return mProvider.getUidDetail(mItem.key, true);
+            final UidDetail detail = mProvider.getUidDetail(mItem.key, true);
+            if (detail != null && detail.label != null && isShared(mItem.key)) {
+                // Only share the labels of single package uids, whose package is known
+                final Context context = mTarget.getContext();
+                final String[] packages = context.getPackageManager().getPackagesForUid(
+                        mItem.key);
+                if (packages != null && packages.length == 1) {
+                    UidLabelCache.getInstance(context).put(mItem.key, detail.label.toString(),
+                            detail.icon, packages[0], true);
+                }
+            }
+            return detail;
         }
 
         @Override
@@ -0,0 +1,223 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.android.settings.datausage;
+
+import android.app.ActivityManager;
+import android.content.Context;
+import android.content.pm.ApplicationInfo;
+import android.content.pm.PackageManager;
+import android.net.NetworkStats;
+import android.os.Process;
+import android.os.UserHandle;
+import android.os.UserManager;
+import android.util.Log;
+import android.util.SparseArray;
+import android.util.SparseBooleanArray;
+import android.util.SparseIntArray;
+import android.util.SparseLongArray;
+
+import com.android.settingslib.AppItem;
+import com.android.settingslib.net.UidDetailProvider;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static android.net.TrafficStats.UID_REMOVED;
+import static android.net.TrafficStats.UID_TETHERING;
+
+/**
+ * Aggregates the per uid {@link NetworkStats} of a cycle into the sorted {@link AppItem}s listed
+ * by {@link DataUsageList}, off the main thread.
+ *
+ * What depends on the user of a uid is looked up once per user, and the totals are accumulated
+ * in primitive arrays keyed by collapse key, so that thousands of rows are aggregated without
+ * allocating per row. The items are only created once all the rows are accumulated.
+ */
+class AppUsageAggregator {
+    private static final String TAG = "AppUsageAggregator";
+
+    private static final String DIALER_PACKAGE = "com.android.dialer";
+
+    // How the uids of a user are collapsed
+    private static final int USER_CURRENT = 0;
+    private static final int USER_MANAGED_PROFILE = 1;
+    private static final int USER_OTHER = 2;
+    private static final int USER_REMOVED = 3;
+
+    private final UserManager mUserManager;
+    private final int mCurrentUserId;
+    private final SparseBooleanArray mProfileIds = new SparseBooleanArray();
+    private final SparseIntArray mUserTypes = new SparseIntArray();
+    // The uid whose usage is shown apart from the system one for video calls, or -1
+    private final int mVideoCallUid;
+
+    /**
+     * The items of a cycle, sorted, and the largest total of them.
+     */
+    static class Result {
+        final ArrayList<AppItem> items;
+        final long largest;
+
+        Result(ArrayList<AppItem> items, long largest) {
+            this.items = items;
+            this.largest = largest;
+        }
+    }
+
+    AppUsageAggregator(Context context) {
+        mUserManager = UserManager.get(context);
+        mCurrentUserId = ActivityManager.getCurrentUser();
+        final List<UserHandle> profiles = mUserManager.getUserProfiles();
+        for (int i = 0; i < profiles.size(); i++) {
+            mProfileIds.put(profiles.get(i).getIdentifier(), true);
+        }
+        mVideoCallUid = getVideoCallUid(context);
+    }
+
+    /**
+     * Aggregate the given {@link NetworkStats}, or {@code null} for no items.
+     */
+    Result aggregate(NetworkStats stats, int[] restrictedUids) {
+        final SparseLongArray totals = new SparseLongArray();
+        final SparseIntArray categories = new SparseIntArray();
+        // The collapse key of each uid, and of its managed profile for the uids of one
+        final SparseIntArray uidKeys = new SparseIntArray();
+        final SparseIntArray uidProfileKeys = new SparseIntArray();
+
+        NetworkStats.Entry entry = null;
+        final int size = stats != null ? stats.size() : 0;
+        for (int i = 0; i < size; i++) {
+            entry = stats.getValues(i, entry);
+            final int uid = entry.uid;
+            final long bytes = entry.rxBytes + entry.txBytes;
+
+            // Decide how to collapse items together
+            final int collapseKey;
+            final int category;
+            if (UserHandle.isApp(uid)) {
+                final int userId = UserHandle.getUserId(uid);
+                switch (getUserType(userId)) {
+                    case USER_MANAGED_PROFILE:
+                        // Add to a managed user item, and to the app item below
+                        final int managedKey = UidDetailProvider.buildKeyForUser(userId);
+                        add(totals, categories, managedKey, AppItem.CATEGORY_USER, bytes);
+                        uidProfileKeys.put(uid, managedKey);
+                        // fall through
+                    case USER_CURRENT:
+                        collapseKey = uid;
+                        category = AppItem.CATEGORY_APP;
+                        break;
+                    case USER_OTHER:
+                        collapseKey = UidDetailProvider.buildKeyForUser(userId);
+                        category = AppItem.CATEGORY_USER;
+                        break;
+                    default:
+                        collapseKey = UID_REMOVED;
+                        category = AppItem.CATEGORY_APP;
+                        break;
+                }
+            } else if (uid == UID_REMOVED || uid == UID_TETHERING || uid == mVideoCallUid) {
+                collapseKey = uid;
+                category = AppItem.CATEGORY_APP;
+            } else {
+                collapseKey = Process.SYSTEM_UID;
+                category = AppItem.CATEGORY_APP;
+            }
+            add(totals, categories, collapseKey, category, bytes);
+            uidKeys.put(uid, collapseKey);
+        }
+
+        final SparseArray<AppItem> knownItems = new SparseArray<>(totals.size());
+        final ArrayList<AppItem> items = new ArrayList<>(totals.size());
+        long largest = 0;
+        for (int i = 0; i < totals.size(); i++) {
+            final AppItem item = new AppItem(totals.keyAt(i));
+            item.category = categories.valueAt(i);
+            item.total = totals.valueAt(i);
+            largest = Math.max(largest, item.total);
+            items.add(item);
+            knownItems.put(item.key, item);
+        }
+        addUids(knownItems, uidKeys);
+        addUids(knownItems, uidProfileKeys);
+
+        for (int i = 0; i < restrictedUids.length; ++i) {
+            final int uid = restrictedUids[i];
+            // Only splice in restricted state for current user or managed users
+            if (!mProfileIds.get(UserHandle.getUserId(uid))) {
+                continue;
+            }
+
+            AppItem item = knownItems.get(uid);
+            if (item == null) {
+                item = new AppItem(uid);
+                item.total = -1;
+                items.add(item);
+                knownItems.put(item.key, item);
+            }
+            item.restricted = true;
+        }
+
+        Collections.sort(items);
+        return new Result(items, largest);
+    }
+
+    private int getUserType(int userId) {
+        int type = mUserTypes.get(userId, -1);
+        if (type == -1) {
+            if (mProfileIds.get(userId)) {
+                type = (userId == mCurrentUserId) ? USER_CURRENT : USER_MANAGED_PROFILE;
+            } else {
+                // If it is a removed user its uids are added to the removed users' key
+                type = (mUserManager.getUserInfo(userId) != null) ? USER_OTHER : USER_REMOVED;
+            }
+            mUserTypes.put(userId, type);
+        }
+        return type;
+    }
+
+    private static void add(SparseLongArray totals, SparseIntArray categories, int collapseKey,
+            int category, long bytes) {
+        final int index = totals.indexOfKey(collapseKey);
+        if (index >= 0) {
+            totals.put(collapseKey, totals.valueAt(index) + bytes);
+        } else {
+            totals.put(collapseKey, bytes);
+            categories.put(collapseKey, category);
+        }
+    }
+
+    private static void addUids(SparseArray<AppItem> knownItems, SparseIntArray uidKeys) {
+        for (int i = 0; i < uidKeys.size(); i++) {
+            knownItems.get(uidKeys.valueAt(i)).addUid(uidKeys.keyAt(i));
+        }
+    }
+
+    private static int getVideoCallUid(Context context) {
+        if (!context.getResources().getBoolean(
+                com.android.internal.R.bool.config_video_call_datausage_enable)) {
+            return -1;
+        }
+        try {
+            final ApplicationInfo ai = context.getPackageManager().getApplicationInfo(
+                    DIALER_PACKAGE, PackageManager.GET_ACTIVITIES);
+            return ai.uid;
+        } catch (PackageManager.NameNotFoundException e) {
+            Log.d(TAG, "get dialer getApplicationInfo failed " + e);
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,208 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.android.settings.datausage;
+
+import android.content.Context;
+import android.net.INetworkStatsSession;
+import android.net.NetworkStats;
+import android.net.NetworkTemplate;
+import android.os.Bundle;
+import android.os.SystemClock;
+import android.util.LruCache;
+import android.util.SparseBooleanArray;
+
+import com.android.settingslib.AppItem;
+import com.android.settingslib.net.ChartData;
+import com.android.settingslib.net.ChartDataLoader;
+import com.android.settingslib.net.SummaryForAllUidLoader;
+
+import java.util.Arrays;
+import java.util.Objects;
+
+/**
+ * Caches the network stats loaded by the data usage screens for the process, so that switching
+ * back to a cycle does not query the stats service again.
+ *
+ * Stats of a range that ended before the last update of the stats service requested by this
+ * process cannot change and are kept until evicted. Other stats, like those of the open cycle
+ * or of a cycle that ended since, and the chart histories, are dropped once the stats service
+ * has been updated (see {@link #onStatsUpdated}), or when they are older than
+ * {@link #OPEN_MAX_AGE_MILLIS} since the service also updates itself periodically.
+ */
+class NetworkStatsCache {
+
+    private static final int MAX_ENTRIES = 16;
+    private static final long OPEN_MAX_AGE_MILLIS = 60 * 1000;
+
+    // Key of the stats for all the uids
+    private static final int ALL_UIDS = Integer.MIN_VALUE;
+    // Range of the histories of the charts
+    private static final long HISTORY = -1;
+
+    // Keys of the loader arguments, see SummaryForAllUidLoader and ChartDataLoader.buildArgs()
+    private static final String KEY_TEMPLATE = "template";
+    private static final String KEY_START = "start";
+    private static final String KEY_END = "end";
+    private static final String KEY_APP = "app";
+
+    private static final LruCache<Key, Entry> sCache = new LruCache<>(MAX_ENTRIES);
+    // Wall clock time of the last poll of the stats service, everything before it is recorded
+    private static long sLastPollTime;
+
+    /**
+     * Drop the stats that may have changed, after the stats service has been updated.
+     *
+     * @param pollTime the wall clock time at which the update was requested
+     */
+    static void onStatsUpdated(long pollTime) {
+        synchronized (sCache) {
+            sLastPollTime = Math.max(sLastPollTime, pollTime);
+            for (Key key : sCache.snapshot().keySet()) {
+                if (!sCache.get(key).closed) {
+                    sCache.remove(key);
+                }
+            }
+        }
+    }
+
+    private static Object get(Key key) {
+        synchronized (sCache) {
+            final Entry entry = sCache.get(key);
+            if (entry == null) {
+                return null;
+            }
+            if (!entry.closed
+                    && SystemClock.elapsedRealtime() - entry.loadTime > OPEN_MAX_AGE_MILLIS) {
+                sCache.remove(key);
+                return null;
+            }
+            return entry.value;
+        }
+    }
+
+    private static void put(Key key, Object value, boolean closed) {
+        if (value == null) {
+            return;
+        }
+        synchronized (sCache) {
+            sCache.put(key, new Entry(value, closed));
+        }
+    }
+
+    /**
+     * A {@link SummaryForAllUidLoader} loading through the cache.
+     */
+    static class SummaryLoader extends SummaryForAllUidLoader {
+        private final Key mKey;
+
+        public SummaryLoader(Context context, INetworkStatsSession session, Bundle args) {
+            super(context, session, args);
+            mKey = new Key((NetworkTemplate) args.getParcelable(KEY_TEMPLATE),
+                    args.getLong(KEY_START), args.getLong(KEY_END), ALL_UIDS, null);
+        }
+
+        @Override
+        public NetworkStats loadInBackground() {
+            NetworkStats stats = (NetworkStats) get(mKey);
+            if (stats == null) {
+                final boolean closed;
+                synchronized (sCache) {
+                    closed = mKey.end < sLastPollTime;
+                }
+                stats = super.loadInBackground();
+                put(mKey, stats, closed);
+            }
+            return stats;
+        }
+    }
+
+    /**
+     * A {@link ChartDataLoader} loading through the cache.
+     */
+    static class ChartLoader extends ChartDataLoader {
+        private final Key mKey;
+
+        public ChartLoader(Context context, INetworkStatsSession session, Bundle args) {
+            super(context, session, args);
+            final AppItem app = args.getParcelable(KEY_APP);
+            // The uids of collapsed items, like the removed apps, depend on the cycle
+            mKey = new Key((NetworkTemplate) args.getParcelable(KEY_TEMPLATE), HISTORY, HISTORY,
+                    app != null ? app.key : ALL_UIDS, app != null ? getUids(app.uids) : null);
+        }
+
+        private static int[] getUids(SparseBooleanArray uids) {
+            final int[] result = new int[uids.size()];
+            for (int i = 0; i < result.length; i++) {
+                result[i] = uids.keyAt(i);
+            }
+            return result;
+        }
+
+        @Override
+        public ChartData loadInBackground() {
+            ChartData data = (ChartData) get(mKey);
+            if (data == null) {
+                data = super.loadInBackground();
+                put(mKey, data, false);
+            }
+            return data;
+        }
+    }
+
+    private static class Key {
+        final NetworkTemplate template;
+        final long start;
+        final long end;
+        final int appKey;
+        // Sorted uids of the app item, or null for all the uids
+        final int[] uids;
+
+        Key(NetworkTemplate template, long start, long end, int appKey, int[] uids) {
+            this.template = template;
+            this.start = start;
+            this.end = end;
+            this.appKey = appKey;
+            this.uids = uids;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            final Key other = (Key) o;
+            return Objects.equals(template, other.template) && start == other.start
+                    && end == other.end && appKey == other.appKey
+                    && Arrays.equals(uids, other.uids);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(template, start, end, appKey) * 31 + Arrays.hashCode(uids);
+        }
+    }
+
+    private static class Entry {
+        final Object value;
+        // Whether the stats are of a range that ended before the last poll
+        final boolean closed;
+        final long loadTime = SystemClock.elapsedRealtime();
+
+        Entry(Object value, boolean closed) {
+            this.value = value;
+            this.closed = closed;
+        }
+    }
+}
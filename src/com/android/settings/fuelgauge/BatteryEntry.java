@@ -32,10 +32,10 @@ import android.util.Log;
 
 import com.android.internal.os.BatterySipper;
 import com.android.settings.R;
+import com.android.settings.applications.UidLabelCache;
 import com.android.settingslib.Utils;
 
 import java.util.ArrayList;
-import java.util.HashMap;
 
 /**
  * Wraps the power usage data of a BatterySipper with information about package name
@@ -45,8 +45,6 @@ public class BatteryEntry {
     public static final int MSG_UPDATE_NAME_ICON = 1;
     public static final int MSG_REPORT_FULLY_DRAWN = 2;
 
-    static final HashMap<String,UidToDetail> sUidCache = new HashMap<String,UidToDetail>();
-
     static final ArrayList<BatteryEntry> mRequestQueue = new ArrayList<BatteryEntry>();
     static Handler sHandler;
 
@@ -109,7 +107,7 @@ public class BatteryEntry {
     }
 
     public static void clearUidCache() {
-        sUidCache.clear();
+        UidLabelCache.clear();
     }
 
     public final Context context;
@@ -119,15 +117,19 @@ public class BatteryEntry {
     public Drawable icon;
     public int iconId; // For passing to the detail screen.
     public String defaultPackageName;
+    // Whether the name and icon are to be loaded by the request queue
+    private boolean mNeedsNameAndIcon;
 
-    static class UidToDetail {
-        String name;
-        String packageName;
-        Drawable icon;
+    public BatteryEntry(Context context, Handler handler, UserManager um, BatterySipper sipper) {
+        this(context, um, sipper);
+        requestNameAndIcon(handler);
     }
 
-    public BatteryEntry(Context context, Handler handler, UserManager um, BatterySipper sipper) {
-        sHandler = handler;
+    /**
+     * Creates an entry without any side effect on the request queue, so that it can be done off
+     * the main thread. {@link #requestNameAndIcon} must then be called from the main thread.
+     */
+    BatteryEntry(Context context, UserManager um, BatterySipper sipper) {
         this.context = context;
         this.sipper = sipper;
         switch (sipper.drainType) {
@@ -206,12 +208,11 @@ public class BatteryEntry {
     }
 
     void getQuickNameIconForUid(final int uid) {
-        final String uidString = Integer.toString(uid);
-        if (sUidCache.containsKey(uidString)) {
-            UidToDetail utd = sUidCache.get(uidString);
-            defaultPackageName = utd.packageName;
-            name = utd.name;
-            icon = utd.icon;
+        final UidLabelCache.Entry cached = UidLabelCache.getInstance(context).get(uid);
+        if (cached != null) {
+            defaultPackageName = cached.packageName;
+            name = cached.label;
+            icon = cached.getIcon();
             return;
         }
         PackageManager pm = context.getPackageManager();
@@ -227,8 +228,16 @@ public class BatteryEntry {
             iconId = R.drawable.ic_power_system;
             icon = context.getDrawable(iconId);
         }
+        mNeedsNameAndIcon = true;
+    }
 
-        if (sHandler != null) {
+    /**
+     * Queue the loading of the name and icon of the entry if needed, the handler being notified
+     * once they are loaded.
+     */
+    void requestNameAndIcon(Handler handler) {
+        sHandler = handler;
+        if (mNeedsNameAndIcon && sHandler != null) {
             synchronized (mRequestQueue) {
                 mRequestQueue.add(this);
             }
@@ -319,11 +328,8 @@ public class BatteryEntry {
             icon = pm.getDefaultActivityIcon();
         }
 
-        UidToDetail utd = new UidToDetail();
-        utd.name = name;
-        utd.icon = icon;
-        utd.packageName = defaultPackageName;
-        sUidCache.put(uidString, utd);
+        UidLabelCache.getInstance(context).put(uid, name, icon, defaultPackageName,
+                sipper.mPackages != null && sipper.mPackages.length == 1);
         if (sHandler != null) {
             sHandler.sendMessage(sHandler.obtainMessage(MSG_UPDATE_NAME_ICON, this));
         }
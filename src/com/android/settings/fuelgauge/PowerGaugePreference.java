@@ -54,8 +54,15 @@ public class PowerGaugePreference extends TintablePreference {
     }
 
     public void setPercent(double percentOfMax, double percentOfTotal) {
-        mProgress = Utils.formatPercentage((int) (percentOfTotal + 0.5));
-        notifyChanged();
+        final String progress = Utils.formatPercentage((int) (percentOfTotal + 0.5));
+        if (!progress.equals(mProgress)) {
+            mProgress = progress;
+            notifyChanged();
+        }
+    }
+
+    void setInfo(BatteryEntry info) {
+        mInfo = info;
     }
 
     BatteryEntry getInfo() {
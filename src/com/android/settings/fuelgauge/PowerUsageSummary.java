@@ -20,6 +20,7 @@ import android.app.Activity;
 import android.app.AlertDialog;
 import android.content.Context;
 import android.graphics.drawable.Drawable;
+import android.os.AsyncTask;
 import android.os.BatteryStats;
 import android.os.Build;
 import android.os.Bundle;
@@ -34,7 +35,6 @@ import android.support.v7.preference.Preference;
 import android.support.v7.preference.PreferenceGroup;
 import android.support.v14.preference.SwitchPreference;
 import android.provider.Settings;
-import android.text.TextUtils;
 import android.util.SparseArray;
 import android.util.TypedValue;
 import android.view.Menu;
@@ -43,6 +43,7 @@ import android.view.MenuItem;
 import com.android.internal.logging.MetricsProto.MetricsEvent;
 import com.android.internal.os.BatterySipper;
 import com.android.internal.os.BatterySipper.DrainType;
+import com.android.internal.os.BatteryStatsHelper;
 import com.android.internal.os.PowerProfile;
 import com.android.settings.R;
 import com.android.settings.Settings.HighPowerApplicationsActivity;
@@ -88,6 +89,12 @@ public class PowerUsageSummary extends PowerUsageBase {
     private int mStatsType = BatteryStats.STATS_SINCE_CHARGED;
     private boolean isShowBatteryPct;
 
+    // Refreshed in the background while mStatsHelper is shown
+    private BatteryStatsHelper mSpareStatsHelper;
+    private RefreshTask mRefreshTask;
+    private boolean mRefreshPending;
+    private int mRefreshGeneration;
+
     private static final int MIN_POWER_THRESHOLD_MILLI_AMP = 5;
     private static final int MAX_ITEMS_TO_LIST = USE_FAKE_DATA ? 30 : 10;
     private static final int MIN_AVERAGE_POWER_THRESHOLD_MILLI_AMP = 10;
@@ -100,6 +107,9 @@ public class PowerUsageSummary extends PowerUsageBase {
         super.onCreate(icicle);
         setAnimationAllowed(true);
 
+        mSpareStatsHelper = new BatteryStatsHelper(getActivity(), true);
+        mSpareStatsHelper.create((Bundle) null);
+
         checkLanguageChange();
 
         addPreferencesFromResource(R.xml.power_usage_summary);
@@ -133,14 +143,6 @@ public class PowerUsageSummary extends PowerUsageBase {
         super.onPause();
     }
 
-    @Override
-    public void onDestroy() {
-        super.onDestroy();
-        if (getActivity().isChangingConfigurations()) {
-            BatteryEntry.clearUidCache();
-        }
-    }
-
     private void checkLanguageChange() {
         if (mLanguale == null) {
             mLanguale = getResources().getConfiguration().locale.toString();
@@ -197,7 +199,13 @@ public class PowerUsageSummary extends PowerUsageBase {
                 @Override
                 public void onClick(DialogInterface dialog, int which) {
                     mStatsHelper.resetStatistics();
-                    refreshStats();
+                    mStatsHelper.refreshStats(BatteryStats.STATS_SINCE_CHARGED,
+                            mUm.getUserProfiles());
+                    // Show the reset stats rather than those of a running refresh
+                    mRefreshGeneration++;
+                    mRefreshPending = false;
+                    updatePreference(mHistPref);
+                    updateAppList(buildUsageRows(getActivity(), mStatsHelper, mStatsType));
                     mHandler.removeMessages(MSG_REFRESH_STATS);
                 }
             })
@@ -356,31 +364,109 @@ public class PowerUsageSummary extends PowerUsageBase {
         return sipper.drainType != BatterySipper.DrainType.SCREEN;
     }
 
+    @Override
     protected void refreshStats() {
-        super.refreshStats();
-        updatePreference(mHistPref);
-        cacheRemoveAllPrefs(mAppListGroup);
-        mAppListGroup.setOrderingAsAdded(false);
-        boolean addedSome = false;
+        // A refresh requested while one is running follows it, instead of racing it
+        if (mRefreshTask != null) {
+            mRefreshPending = true;
+            return;
+        }
+        mRefreshPending = false;
+        mRefreshTask = new RefreshTask(mSpareStatsHelper);
+        mRefreshTask.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+    }
 
-        final PowerProfile powerProfile = mStatsHelper.getPowerProfile();
-        final BatteryStats stats = mStatsHelper.getStats();
-        final double averagePower = powerProfile.getAveragePower(PowerProfile.POWER_SCREEN_FULL);
+    /**
+     * Refreshes the spare {@link BatteryStatsHelper} and builds the rows of the app list from it
+     * in the background, then shows them and makes that helper the current one.
+     */
+    private class RefreshTask extends AsyncTask<Void, Void, List<UsageRow>> {
+        private final BatteryStatsHelper mHelper;
+        private final Context mContext;
+        private final int mStatsType;
+        private final int mGeneration;
+
+        RefreshTask(BatteryStatsHelper helper) {
+            mHelper = helper;
+            mContext = getActivity();
+            mStatsType = PowerUsageSummary.this.mStatsType;
+            mGeneration = mRefreshGeneration;
+        }
 
-        TypedValue value = new TypedValue();
-        getContext().getTheme().resolveAttribute(android.R.attr.colorControlNormal, value, true);
-        int colorControl = getContext().getColor(value.resourceId);
+        @Override
+        protected List<UsageRow> doInBackground(Void... params) {
+            mHelper.clearStats();
+            mHelper.refreshStats(BatteryStats.STATS_SINCE_CHARGED, mUm.getUserProfiles());
+            return buildUsageRows(mContext, mHelper, mStatsType);
+        }
+
+        @Override
+        protected void onPostExecute(List<UsageRow> rows) {
+            mRefreshTask = null;
+            if (mGeneration != mRefreshGeneration) {
+                // The stats were reset meanwhile
+                return;
+            }
+            mSpareStatsHelper = mStatsHelper;
+            mStatsHelper = mHelper;
+            updatePreference(mHistPref);
+            if (isResumed()) {
+                updateAppList(rows);
+                if (mRefreshPending) {
+                    refreshStats();
+                }
+            }
+        }
+    }
+
+    /**
+     * A row of the app list.
+     */
+    private static class UsageRow {
+        final String key;
+        final BatteryEntry entry;
+        final Drawable badgedIcon;
+        final CharSequence contentDescription;
+        final double percentOfMax;
+        final double percentOfTotal;
+        final boolean tinted;
+
+        UsageRow(String key, BatteryEntry entry, Drawable badgedIcon,
+                CharSequence contentDescription, double percentOfMax, double percentOfTotal,
+                boolean tinted) {
+            this.key = key;
+            this.entry = entry;
+            this.badgedIcon = badgedIcon;
+            this.contentDescription = contentDescription;
+            this.percentOfMax = percentOfMax;
+            this.percentOfTotal = percentOfTotal;
+            this.tinted = tinted;
+        }
+    }
+
+    /**
+     * Build the rows of the app list from refreshed stats. Safe to call off the main thread, as
+     * long as nothing else uses the helper meanwhile. The names and icons of the entries are only
+     * requested once the rows are shown, see {@link #updateAppList}.
+     */
+    private List<UsageRow> buildUsageRows(Context context, BatteryStatsHelper helper,
+            int statsType) {
+        final ArrayList<UsageRow> rows = new ArrayList<>();
+
+        final PowerProfile powerProfile = helper.getPowerProfile();
+        final BatteryStats stats = helper.getStats();
+        final double averagePower = powerProfile.getAveragePower(PowerProfile.POWER_SCREEN_FULL);
 
         if (averagePower >= MIN_AVERAGE_POWER_THRESHOLD_MILLI_AMP || USE_FAKE_DATA) {
             final List<BatterySipper> usageList = getCoalescedUsageList(
-                    USE_FAKE_DATA ? getFakeStats() : mStatsHelper.getUsageList());
+                    USE_FAKE_DATA ? getFakeStats() : helper.getUsageList());
 
             final int dischargeAmount = USE_FAKE_DATA ? 5000
-                    : stats != null ? stats.getDischargeAmount(mStatsType) : 0;
+                    : stats != null ? stats.getDischargeAmount(statsType) : 0;
             final int numSippers = usageList.size();
             for (int i = 0; i < numSippers; i++) {
                 final BatterySipper sipper = usageList.get(i);
-                double totalPower = USE_FAKE_DATA ? 4000 : mStatsHelper.getTotalPower();
+                double totalPower = USE_FAKE_DATA ? 4000 : helper.getTotalPower();
                 final double percentOfTotal =
                         ((sipper.totalPowerMah / totalPower) * dischargeAmount);
                 if (sipperCanBePruned(sipper)) {
@@ -394,7 +480,7 @@ public class PowerUsageSummary extends PowerUsageBase {
                 if (sipper.drainType == BatterySipper.DrainType.OVERCOUNTED) {
                     // Don't show over-counted unless it is at least 2/3 the size of
                     // the largest real entry, and its percent of total is more significant
-                    if (sipper.totalPowerMah < ((mStatsHelper.getMaxRealPower()*2)/3)) {
+                    if (sipper.totalPowerMah < ((helper.getMaxRealPower()*2)/3)) {
                         continue;
                     }
                     if (percentOfTotal < 10) {
@@ -407,7 +493,7 @@ public class PowerUsageSummary extends PowerUsageBase {
                 if (sipper.drainType == BatterySipper.DrainType.UNACCOUNTED) {
                     // Don't show over-counted unless it is at least 1/2 the size of
                     // the largest real entry, and its percent of total is more significant
-                    if (sipper.totalPowerMah < (mStatsHelper.getMaxRealPower()/2)) {
+                    if (sipper.totalPowerMah < (helper.getMaxRealPower()/2)) {
                         continue;
                     }
                     if (percentOfTotal < 5) {
@@ -418,44 +504,63 @@ public class PowerUsageSummary extends PowerUsageBase {
                     }
                 }
                 final UserHandle userHandle = new UserHandle(UserHandle.getUserId(sipper.getUid()));
-                final BatteryEntry entry = new BatteryEntry(getActivity(), mHandler, mUm, sipper);
+                final BatteryEntry entry = new BatteryEntry(context, mUm, sipper);
                 final Drawable badgedIcon = mUm.getBadgedIconForUser(entry.getIcon(),
                         userHandle);
                 final CharSequence contentDescription = mUm.getBadgedLabelForUser(entry.getLabel(),
                         userHandle);
-                final String key = sipper.drainType == DrainType.APP ? sipper.getPackages() != null
-                        ? TextUtils.concat(sipper.getPackages()).toString()
-                        : String.valueOf(sipper.getUid())
+                // Same key as the name and icon updates look the preferences up with
+                final String key = sipper.uidObj != null
+                        ? Integer.toString(sipper.uidObj.getUid())
                         : sipper.drainType.toString();
-                PowerGaugePreference pref = (PowerGaugePreference) getCachedPreference(key);
-                if (pref == null) {
-                    pref = new PowerGaugePreference(getPrefContext(), badgedIcon,
-                            contentDescription, entry);
-                    pref.setKey(key);
-                }
-
                 final double percentOfMax = (sipper.totalPowerMah * 100)
-                        / mStatsHelper.getMaxPower();
+                        / helper.getMaxPower();
                 sipper.percent = percentOfTotal;
-                pref.setTitle(entry.getLabel());
-                pref.setOrder(i + 1);
-                pref.setPercent(percentOfMax, percentOfTotal);
-                if (sipper.uidObj != null) {
-                    pref.setKey(Integer.toString(sipper.uidObj.getUid()));
-                }
-                if ((sipper.drainType != DrainType.APP || sipper.uidObj.getUid() == 0)
-                         && sipper.drainType != DrainType.USER) {
-                    pref.setTint(colorControl);
-                }
-                addedSome = true;
-                mAppListGroup.addPreference(pref);
-                if (mAppListGroup.getPreferenceCount() - getCachedCount()
-                        > (MAX_ITEMS_TO_LIST + 1)) {
+                final boolean tinted = (sipper.drainType != DrainType.APP
+                        || sipper.uidObj.getUid() == 0) && sipper.drainType != DrainType.USER;
+                rows.add(new UsageRow(key, entry, badgedIcon, contentDescription, percentOfMax,
+                        percentOfTotal, tinted));
+                if (rows.size() > (MAX_ITEMS_TO_LIST + 1)) {
                     break;
                 }
             }
         }
-        if (!addedSome) {
+        return rows;
+    }
+
+    /**
+     * Show the rows in the app list, reusing the preferences of the rows already shown so that
+     * only what changed is rebound.
+     */
+    private void updateAppList(List<UsageRow> rows) {
+        cacheRemoveAllPrefs(mAppListGroup);
+        mAppListGroup.setOrderingAsAdded(false);
+
+        TypedValue value = new TypedValue();
+        getContext().getTheme().resolveAttribute(android.R.attr.colorControlNormal, value, true);
+        int colorControl = getContext().getColor(value.resourceId);
+
+        final int numRows = rows.size();
+        for (int i = 0; i < numRows; i++) {
+            final UsageRow row = rows.get(i);
+            row.entry.requestNameAndIcon(mHandler);
+            PowerGaugePreference pref = (PowerGaugePreference) getCachedPreference(row.key);
+            if (pref == null) {
+                pref = new PowerGaugePreference(getPrefContext(), row.badgedIcon,
+                        row.contentDescription, row.entry);
+                pref.setKey(row.key);
+            } else {
+                pref.setInfo(row.entry);
+            }
+            pref.setTitle(row.entry.getLabel());
+            pref.setOrder(i + 1);
+            pref.setPercent(row.percentOfMax, row.percentOfTotal);
+            if (row.tinted) {
+                pref.setTint(colorControl);
+            }
+            mAppListGroup.addPreference(pref);
+        }
+        if (numRows == 0) {
             addNotAvailableMessage();
         }
         removeCachedPrefs(mAppListGroup);
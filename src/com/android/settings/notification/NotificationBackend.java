@@ -38,9 +38,7 @@ public class NotificationBackend {
             ServiceManager.getService(Context.NOTIFICATION_SERVICE));
 
     public AppRow loadAppRow(Context context, PackageManager pm, ApplicationInfo app) {
-        final AppRow row = new AppRow();
-        row.pkg = app.packageName;
-        row.uid = app.uid;
+        final AppRow row = loadAppRowSettings(app, isLockScreenSecure(context));
         try {
             row.label = app.loadLabel(pm);
         } catch (Throwable t) {
@@ -48,15 +46,31 @@ public class NotificationBackend {
             row.label = row.pkg;
         }
         row.icon = app.loadIcon(pm);
+        return row;
+    }
+
+    /**
+     * Load the notification settings of an app without its label and icon, for lists of apps
+     * showing those from elsewhere.
+     *
+     * @param lockScreenSecure see {@link #isLockScreenSecure}, the same for all the apps
+     */
+    public AppRow loadAppRowSettings(ApplicationInfo app, boolean lockScreenSecure) {
+        final AppRow row = new AppRow();
+        row.pkg = app.packageName;
+        row.uid = app.uid;
         row.banned = getNotificationsBanned(row.pkg, row.uid);
         row.appImportance = getImportance(row.pkg, row.uid);
         row.appBypassDnd = getBypassZenMode(row.pkg, row.uid);
         row.appVisOverride = getVisibilityOverride(row.pkg, row.uid);
-        row.lockScreenSecure = new LockPatternUtils(context).isSecure(
-                UserHandle.myUserId());
+        row.lockScreenSecure = lockScreenSecure;
         return row;
     }
 
+    public boolean isLockScreenSecure(Context context) {
+        return new LockPatternUtils(context).isSecure(UserHandle.myUserId());
+    }
+
     public AppRow loadAppRow(Context context, PackageManager pm, PackageInfo app) {
         final AppRow row = loadAppRow(context, pm, app.applicationInfo);
         row.cantBlock = Utils.isSystemPackage(context.getResources(), pm, app);
@@ -33,12 +33,14 @@ import android.os.Bundle;
 import android.os.Handler;
 import android.os.Looper;
 import android.os.Message;
+import android.os.SystemClock;
 import android.os.UserHandle;
 import android.os.UserManager;
 import android.print.PrintManager;
 import android.print.PrintServicesLoader;
 import android.printservice.PrintServiceInfo;
 import android.provider.UserDictionary;
+import android.util.ArrayMap;
 import android.util.Log;
 import android.view.accessibility.AccessibilityManager;
 import android.view.inputmethod.InputMethodInfo;
@@ -51,6 +53,7 @@ import com.android.settings.print.PrintSettingsFragment;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 
 public final class DynamicIndexableContentMonitor extends PackageMonitor implements
         InputManager.InputDeviceListener,
@@ -59,12 +62,22 @@ public final class DynamicIndexableContentMonitor extends PackageMonitor impleme
 
     private static final long DELAY_PROCESS_PACKAGE_CHANGE = 2000;
 
+    // Window over which the classes to re-index are merged into a single Index update
+    private static final long DELAY_PROCESS_DIRTY_CLASSES = 1000;
+    // Longest time classes to re-index are held while the Index is busy with other updates
+    private static final long MAX_DELAY_PROCESS_DIRTY_CLASSES = 10000;
+
     private static final int MSG_PACKAGE_AVAILABLE = 1;
     private static final int MSG_PACKAGE_UNAVAILABLE = 2;
+    private static final int MSG_PROCESS_DIRTY_CLASSES = 3;
 
     private final List<String> mAccessibilityServices = new ArrayList<String>();
     private final List<String> mImeServices = new ArrayList<String>();
 
+    // Class names to re-index, mapped to whether their data must be rebuilt first
+    private final Map<String, Boolean> mDirtyClassNames = new ArrayMap<String, Boolean>();
+    private long mFirstDirtyTime;
+
     private final Handler mHandler = new Handler() {
         @Override
         public void handleMessage(Message msg) {
@@ -78,6 +91,10 @@ public final class DynamicIndexableContentMonitor extends PackageMonitor impleme
                     String packageName = (String) msg.obj;
                     handlePackageUnavailable(packageName);
                 } break;
+
+                case MSG_PROCESS_DIRTY_CLASSES: {
+                    processDirtyClasses(false);
+                } break;
             }
         }
     };
@@ -169,6 +186,10 @@ public final class DynamicIndexableContentMonitor extends PackageMonitor impleme
 
         super.unregister();
 
+        // Do not lose the changes seen so far
+        mHandler.removeMessages(MSG_PROCESS_DIRTY_CLASSES);
+        processDirtyClasses(true);
+
         InputManager inputManager = (InputManager) mContext.getSystemService(
                 Context.INPUT_SERVICE);
         inputManager.unregisterInputDeviceListener(this);
@@ -214,8 +235,7 @@ public final class DynamicIndexableContentMonitor extends PackageMonitor impleme
 
     @Override
     public void onInputDeviceAdded(int deviceId) {
-        Index.getInstance(mContext).updateFromClassNameResource(
-                InputMethodAndLanguageSettings.class.getName(), false, true);
+        markDirty(InputMethodAndLanguageSettings.class.getName(), false);
     }
 
     @Override
@@ -225,8 +245,7 @@ public final class DynamicIndexableContentMonitor extends PackageMonitor impleme
 
     @Override
     public void onInputDeviceChanged(int deviceId) {
-        Index.getInstance(mContext).updateFromClassNameResource(
-                InputMethodAndLanguageSettings.class.getName(), true, true);
+        markDirty(InputMethodAndLanguageSettings.class.getName(), true);
     }
 
     private void postMessage(int what, String packageName) {
@@ -234,14 +253,45 @@ public final class DynamicIndexableContentMonitor extends PackageMonitor impleme
         mHandler.sendMessageDelayed(message, DELAY_PROCESS_PACKAGE_CHANGE);
     }
 
+    /**
+     * Schedule the re-indexing of a class. The classes marked dirty within
+     * DELAY_PROCESS_DIRTY_CLASSES are re-indexed together by a single Index update.
+     */
+    private void markDirty(String className, boolean rebuild) {
+        if (mDirtyClassNames.isEmpty()) {
+            mFirstDirtyTime = SystemClock.uptimeMillis();
+        }
+        final Boolean dirtyRebuild = mDirtyClassNames.get(className);
+        mDirtyClassNames.put(className, rebuild || (dirtyRebuild != null && dirtyRebuild));
+        if (!mHandler.hasMessages(MSG_PROCESS_DIRTY_CLASSES)) {
+            mHandler.sendEmptyMessageDelayed(MSG_PROCESS_DIRTY_CLASSES,
+                    DELAY_PROCESS_DIRTY_CLASSES);
+        }
+    }
+
+    private void processDirtyClasses(boolean force) {
+        if (mDirtyClassNames.isEmpty()) {
+            return;
+        }
+        final Index index = Index.getInstance(mContext);
+        if (!force && index.hasPendingUpdates() && SystemClock.uptimeMillis() - mFirstDirtyTime
+                < MAX_DELAY_PROCESS_DIRTY_CLASSES) {
+            // The Index is still busy: keep merging the changes until it is done
+            mHandler.sendEmptyMessageDelayed(MSG_PROCESS_DIRTY_CLASSES,
+                    DELAY_PROCESS_DIRTY_CLASSES);
+            return;
+        }
+        index.updateFromClassNameResources(mDirtyClassNames, true);
+        mDirtyClassNames.clear();
+    }
+
     private void handlePackageAvailable(String packageName) {
         if (!mAccessibilityServices.contains(packageName)) {
             final Intent intent = getAccessibilityServiceIntent(packageName);
             List<?> services = mContext.getPackageManager().queryIntentServices(intent, 0);
             if (services != null && !services.isEmpty()) {
                 mAccessibilityServices.add(packageName);
-                Index.getInstance(mContext).updateFromClassNameResource(
-                        AccessibilitySettings.class.getName(), false, true);
+                markDirty(AccessibilitySettings.class.getName(), false);
             }
         }
 
@@ -251,8 +301,7 @@ public final class DynamicIndexableContentMonitor extends PackageMonitor impleme
                 List<?> services = mContext.getPackageManager().queryIntentServices(intent, 0);
                 if (services != null && !services.isEmpty()) {
                     mImeServices.add(packageName);
-                    Index.getInstance(mContext).updateFromClassNameResource(
-                            InputMethodAndLanguageSettings.class.getName(), false, true);
+                    markDirty(InputMethodAndLanguageSettings.class.getName(), false);
                 }
             }
         }
@@ -262,16 +311,14 @@ public final class DynamicIndexableContentMonitor extends PackageMonitor impleme
         final int accessibilityIndex = mAccessibilityServices.indexOf(packageName);
         if (accessibilityIndex >= 0) {
             mAccessibilityServices.remove(accessibilityIndex);
-            Index.getInstance(mContext).updateFromClassNameResource(
-                    AccessibilitySettings.class.getName(), true, true);
+            markDirty(AccessibilitySettings.class.getName(), true);
         }
 
         if (mHasFeatureIme) {
             final int imeIndex = mImeServices.indexOf(packageName);
             if (imeIndex >= 0) {
                 mImeServices.remove(imeIndex);
-                Index.getInstance(mContext).updateFromClassNameResource(
-                        InputMethodAndLanguageSettings.class.getName(), true, true);
+                markDirty(InputMethodAndLanguageSettings.class.getName(), true);
             }
         }
     }
@@ -286,8 +333,7 @@ public final class DynamicIndexableContentMonitor extends PackageMonitor impleme
     @Override
     public void onLoadFinished(Loader<List<PrintServiceInfo>> loader,
             List<PrintServiceInfo> services) {
-        Index.getInstance(mContext).updateFromClassNameResource(
-                PrintSettingsFragment.class.getName(), false, true);
+        markDirty(PrintSettingsFragment.class.getName(), false);
     }
 
     @Override
@@ -304,8 +350,7 @@ public final class DynamicIndexableContentMonitor extends PackageMonitor impleme
         @Override
         public void onChange(boolean selfChange, Uri uri) {
             if (UserDictionary.Words.CONTENT_URI.equals(uri)) {
-                Index.getInstance(mContext).updateFromClassNameResource(
-                        InputMethodAndLanguageSettings.class.getName(), true, true);
+                markDirty(InputMethodAndLanguageSettings.class.getName(), true);
             }
         };
     }
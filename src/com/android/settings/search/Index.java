@@ -24,44 +24,69 @@ import android.content.pm.ApplicationInfo;
 import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
 import android.content.pm.ResolveInfo;
+import android.content.res.Resources;
 import android.content.res.TypedArray;
 import android.content.res.XmlResourceParser;
 import android.database.Cursor;
 import android.database.DatabaseUtils;
+import android.database.MatrixCursor;
 import android.database.MergeCursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteException;
 import android.database.sqlite.SQLiteFullException;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
 import android.os.AsyncTask;
+import android.os.CancellationSignal;
+import android.os.SystemClock;
 import android.provider.SearchIndexableData;
 import android.provider.SearchIndexableResource;
 import android.provider.SearchIndexablesContract;
 import android.text.TextUtils;
 import android.util.AttributeSet;
 import android.util.Log;
+import android.util.Pair;
 import android.util.TypedValue;
 import android.util.Xml;
 
 import com.android.settings.R;
 import com.android.settings.search.IndexDatabaseHelper.IndexColumns;
+import com.android.settings.search.IndexDatabaseHelper.MetaFingerprintsColumns;
 import com.android.settings.search.IndexDatabaseHelper.Tables;
 
 import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
 
+import java.io.File;
 import java.io.IOException;
 import java.lang.reflect.Field;
 import java.text.Normalizer;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Date;
+import java.util.Enumeration;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
 
 import static android.provider.SearchIndexablesContract.COLUMN_INDEX_NON_INDEXABLE_KEYS_KEY_VALUE;
 import static android.provider.SearchIndexablesContract.COLUMN_INDEX_RAW_CLASS_NAME;
@@ -89,6 +114,7 @@ import static android.provider.SearchIndexablesContract.COLUMN_INDEX_XML_RES_RES
 public class Index {
 
     private static final String LOG_TAG = "Index";
+    private static final boolean DEBUG_TIMING = Log.isLoggable(LOG_TAG, Log.DEBUG);
 
     // Those indices should match the indices of SELECT_COLUMNS !
     public static final int COLUMN_INDEX_RANK = 0;
@@ -127,13 +153,42 @@ public class Index {
             IndexColumns.DATA_KEY_REF             // 13
     };
 
-    private static final String[] MATCH_COLUMNS_PRIMARY = {
+    // Columns written for each indexed row, in the order of the INSERT_ROW_SQL bindings
+    private static final String[] INSERT_COLUMNS = new String[] {
+            IndexColumns.DOCID,
+            IndexColumns.LOCALE,
+            IndexColumns.DATA_RANK,
+            IndexColumns.DATA_TITLE,
+            IndexColumns.DATA_TITLE_NORMALIZED,
+            IndexColumns.DATA_SUMMARY_ON,
+            IndexColumns.DATA_SUMMARY_ON_NORMALIZED,
+            IndexColumns.DATA_SUMMARY_OFF,
+            IndexColumns.DATA_SUMMARY_OFF_NORMALIZED,
+            IndexColumns.DATA_ENTRIES,
+            IndexColumns.DATA_KEYWORDS,
+            IndexColumns.CLASS_NAME,
+            IndexColumns.SCREEN_TITLE,
+            IndexColumns.INTENT_ACTION,
+            IndexColumns.INTENT_TARGET_PACKAGE,
+            IndexColumns.INTENT_TARGET_CLASS,
+            IndexColumns.ICON,
+            IndexColumns.ENABLED,
+            IndexColumns.DATA_KEY_REF,
+            IndexColumns.USER_ID
+    };
+
+    private static final String INSERT_ROW_SQL = "INSERT OR REPLACE INTO "
+            + Tables.TABLE_PREFS_INDEX + " (" + TextUtils.join(", ", INSERT_COLUMNS)
+            + ") VALUES (" + TextUtils.join(", ", Collections.nCopies(INSERT_COLUMNS.length, "?"))
+            + ")";
+
+    static final String[] MATCH_COLUMNS_PRIMARY = {
             IndexColumns.DATA_TITLE,
             IndexColumns.DATA_TITLE_NORMALIZED,
             IndexColumns.DATA_KEYWORDS
     };
 
-    private static final String[] MATCH_COLUMNS_SECONDARY = {
+    static final String[] MATCH_COLUMNS_SECONDARY = {
             IndexColumns.DATA_SUMMARY_ON,
             IndexColumns.DATA_SUMMARY_ON_NORMALIZED,
             IndexColumns.DATA_SUMMARY_OFF,
@@ -141,12 +196,61 @@ public class Index {
             IndexColumns.DATA_ENTRIES
     };
 
+    private static final String[] MATCH_COLUMNS_ALL = {
+            IndexColumns.DATA_TITLE,
+            IndexColumns.DATA_TITLE_NORMALIZED,
+            IndexColumns.DATA_KEYWORDS,
+            IndexColumns.DATA_SUMMARY_ON,
+            IndexColumns.DATA_SUMMARY_ON_NORMALIZED,
+            IndexColumns.DATA_SUMMARY_OFF,
+            IndexColumns.DATA_SUMMARY_OFF_NORMALIZED,
+            IndexColumns.DATA_ENTRIES
+    };
+
+    // Whether a column of the index table, by position, is one of the MATCH_COLUMNS_PRIMARY
+    private static final boolean[] PRIMARY_COLUMN_POSITIONS = getPrimaryColumnPositions();
+
+    // Position of the offsets() column in the ranked search query
+    private static final int COLUMN_INDEX_RANKED_OFFSETS = SELECT_COLUMNS.length;
+
+    // The different shapes of search queries, each one having its own precompiled SQL
+    private static final int QUERY_PRIMARY = 0;
+    private static final int QUERY_SECONDARY = 1;
+    private static final int QUERY_SUGGESTIONS_RECENT = 2;
+    private static final int QUERY_SUGGESTIONS_PREFIX = 3;
+    private static final int QUERY_RANKED = 4;
+
+    private static final String[] QUERY_NAMES = {
+            "Search primary",
+            "Search secondary",
+            "Recent suggestions",
+            "Suggestions",
+            "Search ranked"
+    };
+
+    private static final char LIKE_ESCAPE_CHAR = '\\';
+
+    // Indexed by query type. Arguments:
+    // - QUERY_PRIMARY: primary match expression, locale
+    // - QUERY_SECONDARY: secondary match expression, locale, primary match expression, locale
+    // - QUERY_SUGGESTIONS_RECENT: limit
+    // - QUERY_SUGGESTIONS_PREFIX: escaped LIKE pattern, limit
+    // - QUERY_RANKED: match expression for all the columns, locale
+    private static final String[] QUERY_SQL = {
+            buildSearchSQL(true),
+            buildSearchSQL(false) + " EXCEPT " + buildSearchSQL(true),
+            buildSuggestionsSQL(false),
+            buildSuggestionsSQL(true),
+            buildRankedSearchSQL()
+    };
+
     // Max number of saved search queries (who will be used for proposing suggestions)
     private static long MAX_SAVED_SEARCH_QUERY = 64;
     // Max number of proposed suggestions
     private static final int MAX_PROPOSED_SUGGESTIONS = 5;
 
     private static final String BASE_AUTHORITY = "com.android.settings";
+    private static final String FRAMEWORK_PACKAGE = "android";
 
     private static final String EMPTY = "";
     private static final String NON_BREAKING_HYPHEN = "\u2011";
@@ -163,7 +267,18 @@ public class Index {
 
     private static final List<String> EMPTY_LIST = Collections.<String>emptyList();
 
+    // Parameters of the pool parsing the indexable data
+    private static final int CPU_COUNT = Runtime.getRuntime().availableProcessors();
+    private static final int INDEXING_POOL_SIZE = Math.max(2, Math.min(CPU_COUNT - 1, 4));
+    private static final int KEEP_ALIVE_SECONDS = 30;
+    // Max number of parsed results waiting for the writer
+    private static final int MAX_PENDING_INDEXING_JOBS = INDEXING_POOL_SIZE * 2;
+
     private static Index sInstance;
+    private static ExecutorService sIndexingExecutor;
+    // Resources hashes by APK path, with the modification time of the APK they are for
+    private static final Map<String, Pair<Long, String>> sResourcesHashes =
+            new HashMap<String, Pair<Long, String>>();
 
     private static final Pattern REMOVE_DIACRITICALS_PATTERN
             = Pattern.compile("\\p{InCombiningDiacriticalMarks}+");
@@ -206,7 +321,61 @@ public class Index {
         }
     }
 
+    /**
+     * A row returned by the ranked search, with what it is sorted on
+     */
+    private static class RankedRow implements Comparable<RankedRow> {
+        public final Object[] values;
+        public final int rank;
+        public final int primaryHits;
+
+        public RankedRow(Object[] values, int rank, int primaryHits) {
+            this.values = values;
+            this.rank = rank;
+            this.primaryHits = primaryHits;
+        }
+
+        @Override
+        public int compareTo(RankedRow other) {
+            final boolean primary = primaryHits > 0;
+            if (primary != (other.primaryHits > 0)) {
+                return primary ? -1 : 1;
+            }
+            if (rank != other.rank) {
+                return Integer.compare(rank, other.rank);
+            }
+            return Integer.compare(other.primaryHits, primaryHits);
+        }
+    }
+
+    /**
+     * A parsing job running on the indexing pool, with the data it is indexing
+     */
+    private static class IndexingJob {
+        public final SearchIndexableData data;
+        public final Future<List<ContentValues>> future;
+
+        public IndexingJob(SearchIndexableData data, Future<List<ContentValues>> future) {
+            this.data = data;
+            this.future = future;
+        }
+    }
+
+    private static synchronized ExecutorService getIndexingExecutor() {
+        if (sIndexingExecutor == null) {
+            final ThreadPoolExecutor executor = new ThreadPoolExecutor(INDEXING_POOL_SIZE,
+                    INDEXING_POOL_SIZE, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>());
+            executor.allowCoreThreadTimeOut(true);
+            sIndexingExecutor = executor;
+        }
+        return sIndexingExecutor;
+    }
+
     private final AtomicBoolean mIsAvailable = new AtomicBoolean(false);
+    private final AtomicInteger mPendingUpdateCount = new AtomicInteger();
+    private final AtomicInteger mIndexGeneration = new AtomicInteger();
+    private volatile PrefixSearchIndex mPrefixSearchIndex;
     private final UpdateData mDataToProcess = new UpdateData();
     private Context mContext;
     private final String mBaseAuthority;
@@ -234,34 +403,268 @@ public class Index {
         return mIsAvailable.get();
     }
 
+    /**
+     * @return true if an update has been requested and is not done yet. Callers producing
+     * updates in bursts can use it to hold and merge their next updates.
+     */
+    public boolean hasPendingUpdates() {
+        return mPendingUpdateCount.get() > 0;
+    }
+
     public Cursor search(String query) {
+        return search(query, null);
+    }
+
+    /**
+     * @return true if {@link PrefixSearchIndex#fromSearchResults} snapshots answer longer
+     * queries like {@link #search}. The in-memory and ranked searches match or order the rows
+     * differently than the plain SQL search.
+     */
+    public boolean canNarrowSearchResults() {
+        final Resources res = mContext.getResources();
+        return !res.getBoolean(R.bool.config_search_in_memory)
+                && !res.getBoolean(R.bool.config_search_ranked);
+    }
+
+    /**
+     * Search the Index.
+     *
+     * @param query the query typed by the user.
+     * @param cancellationSignal a signal to cancel the operation in progress, or null if none.
+     *                           If the operation is canceled, then {@link
+     *                           android.os.OperationCanceledException} will be thrown.
+     */
+    public Cursor search(String query, CancellationSignal cancellationSignal) {
+        if (mContext.getResources().getBoolean(R.bool.config_search_in_memory)) {
+            final PrefixSearchIndex prefixSearchIndex = getPrefixSearchIndex();
+            if (cancellationSignal != null) {
+                cancellationSignal.throwIfCanceled();
+            }
+            return prefixSearchIndex.search(query);
+        }
+
         final SQLiteDatabase database = getReadableDatabase();
+        final String localeStr = Locale.getDefault().toString();
+
+        if (mContext.getResources().getBoolean(R.bool.config_search_ranked)) {
+            return searchRanked(database, query, localeStr, cancellationSignal);
+        }
+
         final Cursor[] cursors = new Cursor[2];
 
-        final String primarySql = buildSearchSQL(query, MATCH_COLUMNS_PRIMARY, true);
-        Log.d(LOG_TAG, "Search primary query: " + primarySql);
-        cursors[0] = database.rawQuery(primarySql, null);
+        final String primaryMatch = buildSearchMatchStringForColumns(query, MATCH_COLUMNS_PRIMARY);
+        cursors[0] = rawQuery(database, QUERY_PRIMARY,
+                new String[] { primaryMatch, localeStr }, cancellationSignal);
 
         // We need to use an EXCEPT operator as negate MATCH queries do not work.
-        StringBuilder sql = new StringBuilder(
-                buildSearchSQL(query, MATCH_COLUMNS_SECONDARY, false));
-        sql.append(" EXCEPT ");
-        sql.append(primarySql);
-
-        final String secondarySql = sql.toString();
-        Log.d(LOG_TAG, "Search secondary query: " + secondarySql);
-        cursors[1] = database.rawQuery(secondarySql, null);
+        final String secondaryMatch =
+                buildSearchMatchStringForColumns(query, MATCH_COLUMNS_SECONDARY);
+        cursors[1] = rawQuery(database, QUERY_SECONDARY,
+                new String[] { secondaryMatch, localeStr, primaryMatch, localeStr },
+                cancellationSignal);
 
         return new MergeCursor(cursors);
     }
 
+    /**
+     * Search the Index with a single FTS query on all the columns. The offsets() of the hits
+     * tell which rows match on their title or keywords: those come first, then the rows only
+     * matching on their summaries or entries. Within each group, rows are ordered by rank and
+     * then by number of title and keyword hits.
+     */
+    private Cursor searchRanked(SQLiteDatabase database, String query, String localeStr,
+            CancellationSignal cancellationSignal) {
+        final String match = buildSearchMatchStringForColumns(query, MATCH_COLUMNS_ALL);
+        final Cursor cursor = rawQuery(database, QUERY_RANKED,
+                new String[] { match, localeStr }, cancellationSignal);
+
+        final List<RankedRow> rows = new ArrayList<RankedRow>();
+        try {
+            while (cursor.moveToNext()) {
+                final Object[] values = new Object[SELECT_COLUMNS.length];
+                for (int n = 0; n < values.length; n++) {
+                    values[n] = getCursorValue(cursor, n);
+                }
+                rows.add(new RankedRow(values, cursor.getInt(COLUMN_INDEX_RANK),
+                        countPrimaryHits(cursor.getString(COLUMN_INDEX_RANKED_OFFSETS))));
+            }
+        } finally {
+            cursor.close();
+        }
+
+        // Stable sort, the query already returns the rows ordered by rank
+        Collections.sort(rows);
+        final MatrixCursor result = new MatrixCursor(SELECT_COLUMNS, rows.size());
+        for (RankedRow row : rows) {
+            result.addRow(row.values);
+        }
+        return result;
+    }
+
+    /**
+     * Count the hits of an FTS offsets() result that are in a primary column. The result is made
+     * of groups of 4 integers: column number, term number, byte offset and byte size.
+     */
+    private static int countPrimaryHits(String offsets) {
+        if (TextUtils.isEmpty(offsets)) {
+            return 0;
+        }
+        final String[] values = offsets.split(SPACE);
+        int count = 0;
+        for (int n = 0; n + 3 < values.length; n += 4) {
+            final int column = Integer.parseInt(values[n]);
+            if (column < PRIMARY_COLUMN_POSITIONS.length && PRIMARY_COLUMN_POSITIONS[column]) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    static Object getCursorValue(Cursor cursor, int column) {
+        switch (cursor.getType(column)) {
+            case Cursor.FIELD_TYPE_INTEGER:
+                return cursor.getLong(column);
+            case Cursor.FIELD_TYPE_FLOAT:
+                return cursor.getDouble(column);
+            case Cursor.FIELD_TYPE_BLOB:
+                return cursor.getBlob(column);
+            case Cursor.FIELD_TYPE_NULL:
+                return null;
+            default:
+                return cursor.getString(column);
+        }
+    }
+
+    /**
+     * Returns the in-memory snapshot of the Index for the current locale, building it from the
+     * database if the Index has been updated since it was built.
+     */
+    private PrefixSearchIndex getPrefixSearchIndex() {
+        final String localeStr = Locale.getDefault().toString();
+        PrefixSearchIndex prefixSearchIndex = mPrefixSearchIndex;
+        if (prefixSearchIndex != null && prefixSearchIndex.getLocale().equals(localeStr)) {
+            return prefixSearchIndex;
+        }
+
+        final int generation = mIndexGeneration.get();
+        final long current = System.currentTimeMillis();
+        final String[] columns = new String[SELECT_COLUMNS.length
+                + MATCH_COLUMNS_PRIMARY.length + MATCH_COLUMNS_SECONDARY.length];
+        System.arraycopy(SELECT_COLUMNS, 0, columns, 0, SELECT_COLUMNS.length);
+        System.arraycopy(MATCH_COLUMNS_PRIMARY, 0, columns, SELECT_COLUMNS.length,
+                MATCH_COLUMNS_PRIMARY.length);
+        System.arraycopy(MATCH_COLUMNS_SECONDARY, 0, columns,
+                SELECT_COLUMNS.length + MATCH_COLUMNS_PRIMARY.length,
+                MATCH_COLUMNS_SECONDARY.length);
+
+        final Cursor cursor = getReadableDatabase().query(Tables.TABLE_PREFS_INDEX, columns,
+                IndexColumns.LOCALE + " = ? AND " + IndexColumns.ENABLED + " = 1",
+                new String[] { localeStr }, null, null, null);
+        try {
+            prefixSearchIndex = new PrefixSearchIndex(localeStr, SELECT_COLUMNS, cursor,
+                    getColumnIndices(SELECT_COLUMNS.length, MATCH_COLUMNS_PRIMARY.length),
+                    getColumnIndices(SELECT_COLUMNS.length + MATCH_COLUMNS_PRIMARY.length,
+                            MATCH_COLUMNS_SECONDARY.length));
+        } finally {
+            cursor.close();
+        }
+        Log.d(LOG_TAG, "Building in-memory Index for locale '" + localeStr + "' with "
+                + prefixSearchIndex.getRowCount() + " rows took "
+                + (System.currentTimeMillis() - current) + " millis");
+
+        // Only keep it if the Index has not been updated in the meantime
+        synchronized (mIndexGeneration) {
+            if (generation == mIndexGeneration.get()) {
+                mPrefixSearchIndex = prefixSearchIndex;
+            }
+        }
+        return prefixSearchIndex;
+    }
+
+    private static boolean[] getPrimaryColumnPositions() {
+        int max = -1;
+        for (String column : MATCH_COLUMNS_PRIMARY) {
+            max = Math.max(max, IndexDatabaseHelper.getIndexColumnPosition(column));
+        }
+        final boolean[] result = new boolean[max + 1];
+        for (String column : MATCH_COLUMNS_PRIMARY) {
+            final int position = IndexDatabaseHelper.getIndexColumnPosition(column);
+            if (position >= 0) {
+                result[position] = true;
+            }
+        }
+        return result;
+    }
+
+    private static int[] getColumnIndices(int first, int count) {
+        final int[] result = new int[count];
+        for (int n = 0; n < count; n++) {
+            result[n] = first + n;
+        }
+        return result;
+    }
+
+    /**
+     * @return a number that changes each time the Index database is updated, so that callers
+     * keeping search results can tell when they are stale.
+     */
+    public int getIndexGeneration() {
+        return mIndexGeneration.get();
+    }
+
+    private void invalidatePrefixSearchIndex() {
+        synchronized (mIndexGeneration) {
+            mIndexGeneration.incrementAndGet();
+            mPrefixSearchIndex = null;
+        }
+    }
+
     public Cursor getSuggestions(String query) {
-        final String sql = buildSuggestionsSQL(query);
-        Log.d(LOG_TAG, "Suggestions query: " + sql);
-        return getReadableDatabase().rawQuery(sql, null);
+        return getSuggestions(query, null);
+    }
+
+    public Cursor getSuggestions(String query, CancellationSignal cancellationSignal) {
+        final String limit = Integer.toString(MAX_PROPOSED_SUGGESTIONS);
+        if (TextUtils.isEmpty(query)) {
+            return rawQuery(getReadableDatabase(), QUERY_SUGGESTIONS_RECENT,
+                    new String[] { limit }, cancellationSignal);
+        }
+        return rawQuery(getReadableDatabase(), QUERY_SUGGESTIONS_PREFIX,
+                new String[] { escapeLikePattern(query) + "%", limit }, cancellationSignal);
+    }
+
+    private static String escapeLikePattern(String query) {
+        final StringBuilder sb = new StringBuilder(query.length());
+        for (int n = 0; n < query.length(); n++) {
+            final char c = query.charAt(n);
+            if (c == '%' || c == '_' || c == LIKE_ESCAPE_CHAR) {
+                sb.append(LIKE_ESCAPE_CHAR);
+            }
+            sb.append(c);
+        }
+        return sb.toString();
     }
 
-    private String buildSuggestionsSQL(String query) {
+    /**
+     * Run one of the precompiled queries. As the SQL of a given query type never changes,
+     * SQLite only compiles it once per connection and reuses the prepared statement from its
+     * statement cache, only binding the new arguments.
+     */
+    private static Cursor rawQuery(SQLiteDatabase database, int queryType, String[] args,
+            CancellationSignal cancellationSignal) {
+        if (!DEBUG_TIMING) {
+            return database.rawQuery(QUERY_SQL[queryType], args, cancellationSignal);
+        }
+        final long current = SystemClock.elapsedRealtime();
+        final Cursor cursor = database.rawQuery(QUERY_SQL[queryType], args, cancellationSignal);
+        // Run the query now so that it is accounted for
+        final int count = cursor.getCount();
+        Log.d(LOG_TAG, QUERY_NAMES[queryType] + " query returned " + count + " rows in "
+                + (SystemClock.elapsedRealtime() - current) + " millis");
+        return cursor;
+    }
+
+    private static String buildSuggestionsSQL(boolean withPrefix) {
         StringBuilder sb = new StringBuilder();
 
         sb.append("SELECT ");
@@ -269,20 +672,17 @@ public class Index {
         sb.append(" FROM ");
         sb.append(Tables.TABLE_SAVED_QUERIES);
 
-        if (TextUtils.isEmpty(query)) {
+        if (!withPrefix) {
             sb.append(" ORDER BY rowId DESC");
         } else {
             sb.append(" WHERE ");
             sb.append(IndexDatabaseHelper.SavedQueriesColums.QUERY);
-            sb.append(" LIKE ");
-            sb.append("'");
-            sb.append(query);
-            sb.append("%");
+            sb.append(" LIKE ? ESCAPE '");
+            sb.append(LIKE_ESCAPE_CHAR);
             sb.append("'");
         }
 
-        sb.append(" LIMIT ");
-        sb.append(MAX_PROPOSED_SUGGESTIONS);
+        sb.append(" LIMIT ?");
 
         return sb.toString();
     }
@@ -293,7 +693,7 @@ public class Index {
     }
 
     public void update() {
-        AsyncTask.execute(new Runnable() {
+        scheduleUpdate(new Runnable() {
             @Override
             public void run() {
                 final Intent intent = new Intent(SearchIndexablesContract.PROVIDER_INTERFACE);
@@ -458,6 +858,7 @@ public class Index {
 
     private void updateFromRemoteProvider(String packageName, String authority) {
         if (addIndexablesFromRemoteProvider(packageName, authority)) {
+            mPendingUpdateCount.incrementAndGet();
             updateInternal();
         }
     }
@@ -470,34 +871,66 @@ public class Index {
      * @param includeInSearchResults true means that you want the bit "enabled" set so that the
      *                               data will be seen included into the search results
      */
-    public void updateFromClassNameResource(String className, final boolean rebuild,
+    public void updateFromClassNameResource(String className, boolean rebuild,
             boolean includeInSearchResults) {
         if (className == null) {
             throw new IllegalArgumentException("class name cannot be null!");
         }
-        final SearchIndexableResource res = SearchIndexableResources.getResourceByName(className);
-        if (res == null ) {
-            Log.e(LOG_TAG, "Cannot find SearchIndexableResources for class name: " + className);
+        updateFromClassNameResources(Collections.singletonMap(className, rebuild),
+                includeInSearchResults);
+    }
+
+    /**
+     * Update the Index for several class name resources at once, with a single indexing task.
+     *
+     * @param classNames the class names mapped to their rebuild flag, see
+     *                   {@link #updateFromClassNameResource(String, boolean, boolean)}.
+     * @param includeInSearchResults true means that you want the bit "enabled" set so that the
+     *                               data will be seen included into the search results
+     */
+    public void updateFromClassNameResources(Map<String, Boolean> classNames,
+            boolean includeInSearchResults) {
+        final List<SearchIndexableResource> resources = new ArrayList<SearchIndexableResource>();
+        final List<Boolean> rebuilds = new ArrayList<Boolean>();
+        for (Map.Entry<String, Boolean> entry : classNames.entrySet()) {
+            final String className = entry.getKey();
+            final SearchIndexableResource res =
+                    SearchIndexableResources.getResourceByName(className);
+            if (res == null ) {
+                Log.e(LOG_TAG, "Cannot find SearchIndexableResources for class name: "
+                        + className);
+                continue;
+            }
+            res.context = mContext;
+            res.enabled = includeInSearchResults;
+            resources.add(res);
+            rebuilds.add(entry.getValue());
+        }
+        if (resources.isEmpty()) {
             return;
         }
-        res.context = mContext;
-        res.enabled = includeInSearchResults;
-        AsyncTask.execute(new Runnable() {
+        scheduleUpdate(new Runnable() {
             @Override
             public void run() {
-                if (rebuild) {
-                    deleteIndexableData(res);
+                final int count = resources.size();
+                for (int n = 0; n < count; n++) {
+                    final SearchIndexableResource res = resources.get(n);
+                    if (rebuilds.get(n)) {
+                        deleteIndexableData(res);
+                    }
+                    addIndexableData(res);
                 }
-                addIndexableData(res);
                 mDataToProcess.forceUpdate = true;
                 updateInternal();
-                res.enabled = false;
+                for (int n = 0; n < count; n++) {
+                    resources.get(n).enabled = false;
+                }
             }
         });
     }
 
     public void updateFromSearchIndexableData(SearchIndexableData data) {
-        AsyncTask.execute(new Runnable() {
+        scheduleUpdate(new Runnable() {
             @Override
             public void run() {
                 addIndexableData(data);
@@ -535,6 +968,16 @@ public class Index {
                 SearchIndexablesContract.NON_INDEXABLES_KEYS_PATH);
     }
 
+    /**
+     * Run an update on the serial AsyncTask executor. The update must call
+     * {@link #updateInternal()} exactly once, the pending update count being decremented when
+     * the resulting indexing task is done, cancelled or has failed.
+     */
+    private void scheduleUpdate(Runnable update) {
+        mPendingUpdateCount.incrementAndGet();
+        AsyncTask.execute(update);
+    }
+
     private void updateInternal() {
         synchronized (mDataToProcess) {
             final UpdateIndexTask task = new UpdateIndexTask();
@@ -654,9 +1097,9 @@ public class Index {
         }
     }
 
-    private String buildSearchSQL(String query, String[] colums, boolean withOrderBy) {
+    private static String buildSearchSQL(boolean withOrderBy) {
         StringBuilder sb = new StringBuilder();
-        sb.append(buildSearchSQLForColumn(query, colums));
+        sb.append(buildSearchSQLForColumn());
         if (withOrderBy) {
             sb.append(" ORDER BY ");
             sb.append(IndexColumns.DATA_RANK);
@@ -664,7 +1107,26 @@ public class Index {
         return sb.toString();
     }
 
-    private String buildSearchSQLForColumn(String query, String[] columnNames) {
+    private static String buildRankedSearchSQL() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("SELECT ");
+        for (int n = 0; n < SELECT_COLUMNS.length; n++) {
+            sb.append(SELECT_COLUMNS[n]);
+            sb.append(", ");
+        }
+        sb.append("offsets(");
+        sb.append(Tables.TABLE_PREFS_INDEX);
+        sb.append(")");
+        sb.append(" FROM ");
+        sb.append(Tables.TABLE_PREFS_INDEX);
+        sb.append(" WHERE ");
+        sb.append(buildSearchWhereString());
+        sb.append(" ORDER BY ");
+        sb.append(IndexColumns.DATA_RANK);
+        return sb.toString();
+    }
+
+    private static String buildSearchSQLForColumn() {
         StringBuilder sb = new StringBuilder();
         sb.append("SELECT ");
         for (int n = 0; n < SELECT_COLUMNS.length; n++) {
@@ -676,27 +1138,24 @@ public class Index {
         sb.append(" FROM ");
         sb.append(Tables.TABLE_PREFS_INDEX);
         sb.append(" WHERE ");
-        sb.append(buildSearchWhereStringForColumns(query, columnNames));
+        sb.append(buildSearchWhereString());
 
         return sb.toString();
     }
 
-    private String buildSearchWhereStringForColumns(String query, String[] columnNames) {
+    private static String buildSearchWhereString() {
         final StringBuilder sb = new StringBuilder(Tables.TABLE_PREFS_INDEX);
-        sb.append(" MATCH ");
-        DatabaseUtils.appendEscapedSQLString(sb,
-                buildSearchMatchStringForColumns(query, columnNames));
+        sb.append(" MATCH ?");
         sb.append(" AND ");
         sb.append(IndexColumns.LOCALE);
-        sb.append(" = ");
-        DatabaseUtils.appendEscapedSQLString(sb, Locale.getDefault().toString());
+        sb.append(" = ?");
         sb.append(" AND ");
         sb.append(IndexColumns.ENABLED);
         sb.append(" = 1");
         return sb.toString();
     }
 
-    private String buildSearchMatchStringForColumns(String query, String[] columnNames) {
+    static String buildSearchMatchStringForColumns(String query, String[] columnNames) {
         final String value = query + "*";
         StringBuilder sb = new StringBuilder();
         final int count = columnNames.length;
@@ -711,23 +1170,23 @@ public class Index {
         return sb.toString();
     }
 
-    private void indexOneSearchIndexableData(SQLiteDatabase database, String localeStr,
+    private void indexOneSearchIndexableData(List<ContentValues> rows, String localeStr,
             SearchIndexableData data, Map<String, List<String>> nonIndexableKeys) {
         if (data instanceof SearchIndexableResource) {
-            indexOneResource(database, localeStr, (SearchIndexableResource) data, nonIndexableKeys);
+            indexOneResource(rows, localeStr, (SearchIndexableResource) data, nonIndexableKeys);
         } else if (data instanceof SearchIndexableRaw) {
-            indexOneRaw(database, localeStr, (SearchIndexableRaw) data);
+            indexOneRaw(rows, localeStr, (SearchIndexableRaw) data);
         }
     }
 
-    private void indexOneRaw(SQLiteDatabase database, String localeStr,
+    private void indexOneRaw(List<ContentValues> rows, String localeStr,
                              SearchIndexableRaw raw) {
         // Should be the same locale as the one we are processing
         if (!raw.locale.toString().equalsIgnoreCase(localeStr)) {
             return;
         }
 
-        updateOneRowWithFilteredData(database, localeStr,
+        updateOneRowWithFilteredData(rows, localeStr,
                 raw.title,
                 raw.summaryOn,
                 raw.summaryOff,
@@ -760,7 +1219,7 @@ public class Index {
         return isIndexableClass(clazz) ? clazz : null;
     }
 
-    private void indexOneResource(SQLiteDatabase database, String localeStr,
+    private void indexOneResource(List<ContentValues> rows, String localeStr,
             SearchIndexableResource sir, Map<String, List<String>> nonIndexableKeysFromResource) {
 
         if (sir == null) {
@@ -776,7 +1235,7 @@ public class Index {
                 nonIndexableKeys.addAll(resNonIndxableKeys);
             }
 
-            indexFromResource(sir.context, database, localeStr,
+            indexFromResource(sir.context, rows, localeStr,
                     sir.xmlResId, sir.className, sir.iconResId, sir.rank,
                     sir.intentAction, sir.intentTargetPackage, sir.intentTargetClass,
                     nonIndexableKeys);
@@ -802,7 +1261,7 @@ public class Index {
                     nonIndexableKeys.addAll(providerNonIndexableKeys);
                 }
 
-                indexFromProvider(mContext, database, localeStr, provider, sir.className,
+                indexFromProvider(mContext, rows, localeStr, provider, sir.className,
                         sir.iconResId, sir.rank, sir.enabled, nonIndexableKeys);
             }
         }
@@ -828,7 +1287,7 @@ public class Index {
         return null;
     }
 
-    private void indexFromResource(Context context, SQLiteDatabase database, String localeStr,
+    private void indexFromResource(Context context, List<ContentValues> rows, String localeStr,
            int xmlResId, String fragmentName, int iconResId, int rank,
            String intentAction, String intentTargetPackage, String intentTargetClass,
            List<String> nonIndexableKeys) {
@@ -868,7 +1327,7 @@ public class Index {
                 summary = getDataSummary(context, attrs);
                 keywords = getDataKeywords(context, attrs);
 
-                updateOneRowWithFilteredData(database, localeStr, title, summary, null, null,
+                updateOneRowWithFilteredData(rows, localeStr, title, summary, null, null,
                         fragmentName, screenTitle, iconResId, rank,
                         keywords, intentAction, intentTargetPackage, intentTargetClass, true,
                         key, -1 /* default user id */);
@@ -900,7 +1359,7 @@ public class Index {
                     }
 
                     // Insert rows for the child nodes of PreferenceScreen
-                    updateOneRowWithFilteredData(database, localeStr, title, summary, null, entries,
+                    updateOneRowWithFilteredData(rows, localeStr, title, summary, null, entries,
                             fragmentName, screenTitle, iconResId, rank,
                             keywords, intentAction, intentTargetPackage, intentTargetClass,
                             true, key, -1 /* default user id */);
@@ -912,7 +1371,7 @@ public class Index {
                         summaryOn = getDataSummary(context, attrs);
                     }
 
-                    updateOneRowWithFilteredData(database, localeStr, title, summaryOn, summaryOff,
+                    updateOneRowWithFilteredData(rows, localeStr, title, summaryOn, summaryOff,
                             null, fragmentName, screenTitle, iconResId, rank,
                             keywords, intentAction, intentTargetPackage, intentTargetClass,
                             true, key, -1 /* default user id */);
@@ -928,7 +1387,7 @@ public class Index {
         }
     }
 
-    private void indexFromProvider(Context context, SQLiteDatabase database, String localeStr,
+    private void indexFromProvider(Context context, List<ContentValues> rows, String localeStr,
             Indexable.SearchIndexProvider provider, String className, int iconResId, int rank,
             boolean enabled, List<String> nonIndexableKeys) {
 
@@ -953,7 +1412,7 @@ public class Index {
                     continue;
                 }
 
-                updateOneRowWithFilteredData(database, localeStr,
+                updateOneRowWithFilteredData(rows, localeStr,
                         raw.title,
                         raw.summaryOn,
                         raw.summaryOff,
@@ -989,7 +1448,7 @@ public class Index {
                 String itemClassName = (TextUtils.isEmpty(item.className))
                         ? className : item.className;
 
-                indexFromResource(context, database, localeStr,
+                indexFromResource(context, rows, localeStr,
                         item.xmlResId, itemClassName, itemIconResId, itemRank,
                         item.intentAction, item.intentTargetPackage,
                         item.intentTargetClass, nonIndexableKeys);
@@ -997,7 +1456,7 @@ public class Index {
         }
     }
 
-    private void updateOneRowWithFilteredData(SQLiteDatabase database, String locale,
+    private void updateOneRowWithFilteredData(List<ContentValues> rows, String locale,
             String title, String summaryOn, String summaryOff, String entries,
             String className,
             String screenTitle, int iconResId, int rank, String keywords,
@@ -1014,18 +1473,18 @@ public class Index {
 
         final String spaceDelimitedKeywords = normalizeKeywords(keywords);
 
-        updateOneRow(database, locale,
+        updateOneRow(rows, locale,
                 updatedTitle, normalizedTitle, updatedSummaryOn, normalizedSummaryOn,
                 updatedSummaryOff, normalizedSummaryOff, entries, className, screenTitle, iconResId,
                 rank, spaceDelimitedKeywords, intentAction, intentTargetPackage, intentTargetClass,
                 enabled, key, userId);
     }
 
-    private static String normalizeHyphen(String input) {
+    static String normalizeHyphen(String input) {
         return (input != null) ? input.replaceAll(NON_BREAKING_HYPHEN, HYPHEN) : EMPTY;
     }
 
-    private static String normalizeString(String input) {
+    static String normalizeString(String input) {
         final String nohyphen = (input != null) ? input.replaceAll(HYPHEN, EMPTY) : EMPTY;
         final String normalized = Normalizer.normalize(nohyphen, Normalizer.Form.NFD);
 
@@ -1036,7 +1495,7 @@ public class Index {
         return (input != null) ? input.replaceAll(LIST_DELIMITERS, SPACE) : EMPTY;
     }
 
-    private void updateOneRow(SQLiteDatabase database, String locale, String updatedTitle,
+    private void updateOneRow(List<ContentValues> rows, String locale, String updatedTitle,
             String normalizedTitle, String updatedSummaryOn, String normalizedSummaryOn,
             String updatedSummaryOff, String normalizedSummaryOff, String entries, String className,
             String screenTitle, int iconResId, int rank, String spaceDelimitedKeywords,
@@ -1075,7 +1534,7 @@ public class Index {
         values.put(IndexColumns.DATA_KEY_REF, key);
         values.put(IndexColumns.USER_ID, userId);
 
-        database.replaceOrThrow(Tables.TABLE_PREFS_INDEX, null, values);
+        rows.add(values);
     }
 
     private String getDataKey(Context context, AttributeSet attrs) {
@@ -1130,6 +1589,7 @@ public class Index {
                 data = tv.string;
             }
         }
+        sa.recycle();
         return (data != null) ? data.toString() : null;
     }
 
@@ -1143,6 +1603,7 @@ public class Index {
                 data = context.getResources().getStringArray(tv.resourceId);
             }
         }
+        sa.recycle();
         final int count = (data == null ) ? 0 : data.length;
         if (count == 0) {
             return null;
@@ -1155,11 +1616,75 @@ public class Index {
         return result.toString();
     }
 
+    /**
+     * Returns a hash of the content of the resources of an APK, or null if it cannot be read.
+     * Only the CRCs of the resource table and of the res/ entries are read from the zip central
+     * directory, so nothing is decompressed. Unlike the build fingerprint, the hash does not
+     * change when the same resources are built again. Hashes are cached until the APK changes.
+     */
+    static String getResourcesHash(String apkPath) {
+        if (TextUtils.isEmpty(apkPath)) {
+            return null;
+        }
+        final long modified = new File(apkPath).lastModified();
+        synchronized (sResourcesHashes) {
+            final Pair<Long, String> cached = sResourcesHashes.get(apkPath);
+            if (cached != null && cached.first == modified) {
+                return cached.second;
+            }
+        }
+        final String hash = computeResourcesHash(apkPath);
+        if (hash != null) {
+            synchronized (sResourcesHashes) {
+                sResourcesHashes.put(apkPath, Pair.create(modified, hash));
+            }
+        }
+        return hash;
+    }
+
+    private static String computeResourcesHash(String apkPath) {
+        ZipFile zip = null;
+        try {
+            zip = new ZipFile(apkPath);
+            final TreeMap<String, Long> crcs = new TreeMap<String, Long>();
+            final Enumeration<? extends ZipEntry> entries = zip.entries();
+            while (entries.hasMoreElements()) {
+                final ZipEntry entry = entries.nextElement();
+                final String name = entry.getName();
+                if (name.startsWith("res/") || name.equals("resources.arsc")) {
+                    crcs.put(name, entry.getCrc());
+                }
+            }
+            if (crcs.isEmpty()) {
+                return null;
+            }
+            // Entries are sorted so that the hash does not depend on their order in the APK
+            final CRC32 hash = new CRC32();
+            for (Map.Entry<String, Long> entry : crcs.entrySet()) {
+                hash.update((entry.getKey() + ':' + entry.getValue() + ';').getBytes());
+            }
+            return Long.toHexString(hash.getValue());
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Cannot read the resources of: " + apkPath, e);
+            return null;
+        } finally {
+            if (zip != null) {
+                try {
+                    zip.close();
+                } catch (IOException e) {
+                    // Ignore
+                }
+            }
+        }
+    }
+
     /**
      * A private class for updating the Index database
      */
     private class UpdateIndexTask extends AsyncTask<UpdateData, Integer, Void> {
 
+        private final AtomicBoolean mReleased = new AtomicBoolean(false);
+
         @Override
         protected void onPreExecute() {
             super.onPreExecute();
@@ -1172,8 +1697,34 @@ public class Index {
             mIsAvailable.set(true);
         }
 
+        @Override
+        protected void onCancelled(Void aVoid) {
+            super.onCancelled(aVoid);
+            mIsAvailable.set(true);
+            // The task may have been cancelled before running at all
+            releasePendingUpdate();
+        }
+
+        /**
+         * Decrement the pending update count once, whether the task completes, throws or is
+         * cancelled, so that a failed task does not hold the next updates.
+         */
+        private void releasePendingUpdate() {
+            if (mReleased.compareAndSet(false, true)) {
+                mPendingUpdateCount.decrementAndGet();
+            }
+        }
+
         @Override
         protected Void doInBackground(UpdateData... params) {
+            try {
+                return updateIndex(params);
+            } finally {
+                releasePendingUpdate();
+            }
+        }
+
+        private Void updateIndex(UpdateData... params) {
             try {
                 final List<SearchIndexableData> dataToUpdate = params[0].dataToUpdate;
                 final List<SearchIndexableData> dataToDelete = params[0].dataToDelete;
@@ -1196,17 +1747,22 @@ public class Index {
                     }
                     if (dataToUpdate.size() > 0) {
                         processDataToUpdate(database, localeStr, dataToUpdate, nonIndexableKeys,
-                                forceUpdate);
+                                forceUpdate, fullIndex);
                     }
                     database.setTransactionSuccessful();
                 } finally {
                     database.endTransaction();
+                    invalidatePrefixSearchIndex();
                 }
                 if (fullIndex) {
                     IndexDatabaseHelper.setLocaleIndexed(mContext, localeStr);
                 }
             } catch (SQLiteFullException e) {
                 Log.e(LOG_TAG, "Unable to index search, out of space", e);
+            } catch (InterruptedException e) {
+                // The transaction has been rolled back: leave the Index as it was
+                Log.w(LOG_TAG, "Indexing interrupted");
+                Thread.currentThread().interrupt();
             }
 
             return null;
@@ -1214,7 +1770,7 @@ public class Index {
 
         private boolean processDataToUpdate(SQLiteDatabase database, String localeStr,
                 List<SearchIndexableData> dataToUpdate, Map<String, List<String>> nonIndexableKeys,
-                boolean forceUpdate) {
+                boolean forceUpdate, boolean fullIndex) throws InterruptedException {
 
             if (!forceUpdate && IndexDatabaseHelper.isLocaleAlreadyIndexed(mContext, localeStr)) {
                 Log.d(LOG_TAG, "Locale '" + localeStr + "' is already indexed");
@@ -1224,23 +1780,274 @@ public class Index {
             boolean result = false;
             final long current = System.currentTimeMillis();
 
+            // For a full index, only re-parse the resources whose fingerprint has changed since
+            // they were last indexed for this locale. Everything else is kept as is.
+            Map<String, String> fingerprints = null;
+            final Set<String> unchangedClassNames = new HashSet<String>();
+            if (fullIndex && !forceUpdate) {
+                fingerprints = computeFingerprints(dataToUpdate, nonIndexableKeys, localeStr);
+                final Map<String, String> indexedFingerprints =
+                        getIndexedFingerprints(database, localeStr);
+                for (Map.Entry<String, String> entry : fingerprints.entrySet()) {
+                    if (entry.getValue().equals(indexedFingerprints.get(entry.getKey()))) {
+                        unchangedClassNames.add(entry.getKey());
+                    }
+                }
+                deleteRowsExcept(database, localeStr, unchangedClassNames);
+            }
+
+            // XML parsing happens on the indexing pool while this thread, which owns the
+            // transaction and calls the providers, is the single writer. At most
+            // MAX_PENDING_INDEXING_JOBS parsed results are kept in memory and they are written
+            // in submission order so that duplicated docids are resolved the same way as a
+            // sequential indexing would do.
+            final SQLiteStatement insert = database.compileStatement(INSERT_ROW_SQL);
+            final ArrayDeque<IndexingJob> pending = new ArrayDeque<IndexingJob>();
+            int skipped = 0;
+            int rowCount = 0;
+            try {
+                final int count = dataToUpdate.size();
+                for (int n = 0; n < count; n++) {
+                    final SearchIndexableData data = dataToUpdate.get(n);
+                    if (data instanceof SearchIndexableResource
+                            && unchangedClassNames.contains(data.className)) {
+                        skipped++;
+                        continue;
+                    }
+                    if (pending.size() >= MAX_PENDING_INDEXING_JOBS) {
+                        rowCount += writeRows(insert, pending.poll(), localeStr, fingerprints);
+                    }
+                    pending.add(submitIndexingJob(data, localeStr, nonIndexableKeys));
+                }
+                while (!pending.isEmpty()) {
+                    rowCount += writeRows(insert, pending.poll(), localeStr, fingerprints);
+                }
+            } finally {
+                for (IndexingJob job : pending) {
+                    job.future.cancel(true);
+                }
+                insert.close();
+            }
+
+            if (fingerprints != null) {
+                updateFingerprints(database, localeStr, fingerprints);
+            }
+
+            final long now = System.currentTimeMillis();
+            Log.d(LOG_TAG, "Indexing locale '" + localeStr + "' took " +
+                    (now - current) + " millis (" + rowCount + " rows written, " + skipped +
+                    " unchanged resources skipped)");
+            return result;
+        }
+
+        private IndexingJob submitIndexingJob(final SearchIndexableData data,
+                final String localeStr, final Map<String, List<String>> nonIndexableKeys) {
+            final Callable<List<ContentValues>> callable = new Callable<List<ContentValues>>() {
+                @Override
+                public List<ContentValues> call() {
+                    final List<ContentValues> rows = new ArrayList<ContentValues>();
+                    indexOneSearchIndexableData(rows, localeStr, data, nonIndexableKeys);
+                    return rows;
+                }
+            };
+            if (data instanceof SearchIndexableResource && ((SearchIndexableResource) data)
+                    .xmlResId > SearchIndexableResources.NO_DATA_RES_ID) {
+                return new IndexingJob(data, getIndexingExecutor().submit(callable));
+            }
+            // Only XML parsing is done on the pool: the providers were written to be called
+            // from a single thread, so they are called from this one.
+            final FutureTask<List<ContentValues>> task =
+                    new FutureTask<List<ContentValues>>(callable);
+            task.run();
+            return new IndexingJob(data, task);
+        }
+
+        /**
+         * Wait for a parsing job to complete and write its rows with the reused INSERT statement.
+         *
+         * @return the number of rows written
+         */
+        private int writeRows(SQLiteStatement insert, IndexingJob job, String localeStr,
+                Map<String, String> fingerprints) throws InterruptedException {
+            int written = 0;
+            try {
+                final List<ContentValues> rows = job.future.get();
+                final int count = rows.size();
+                for (int n = 0; n < count; n++) {
+                    final ContentValues values = rows.get(n);
+                    insert.clearBindings();
+                    for (int i = 0; i < INSERT_COLUMNS.length; i++) {
+                        DatabaseUtils.bindObjectToProgram(insert, i + 1,
+                                values.get(INSERT_COLUMNS[i]));
+                    }
+                    insert.executeInsert();
+                    written++;
+                }
+            } catch (ExecutionException | SQLiteException e) {
+                final SearchIndexableData data = job.data;
+                Log.e(LOG_TAG, "Cannot index: " + (data != null ? data.className : data)
+                                + " for locale: " + localeStr, e);
+                if (fingerprints != null && data != null) {
+                    // Make sure we will try again next time
+                    fingerprints.remove(data.className);
+                }
+            }
+            return written;
+        }
+
+        /**
+         * Compute a fingerprint for each class name of the XML {@link SearchIndexableResource}s
+         * to update. The fingerprint covers everything that can change the indexed rows without
+         * a locale change: the resource ids, the version of the package hosting them and of the
+         * framework, whose strings they can reference, with their overlays, and the non
+         * indexable keys of that package. Classes also indexed from a provider or from raw
+         * data get no fingerprint, so that they are always indexed again.
+         */
+        private Map<String, String> computeFingerprints(List<SearchIndexableData> dataToUpdate,
+                Map<String, List<String>> nonIndexableKeys, String localeStr) {
+            final Map<String, String> packageVersions = new HashMap<String, String>();
+            final Map<String, StringBuilder> builders = new HashMap<String, StringBuilder>();
+            final Set<String> excluded = new HashSet<String>();
+            final String frameworkVersion = getPackageVersion(FRAMEWORK_PACKAGE);
+
             final int count = dataToUpdate.size();
             for (int n = 0; n < count; n++) {
                 final SearchIndexableData data = dataToUpdate.get(n);
-                try {
-                    indexOneSearchIndexableData(database, localeStr, data, nonIndexableKeys);
-                } catch (Exception e) {
-                    Log.e(LOG_TAG, "Cannot index: " + (data != null ? data.className : data)
-                                    + " for locale: " + localeStr, e);
+                if (data == null || TextUtils.isEmpty(data.className)) {
+                    continue;
                 }
+                if (!(data instanceof SearchIndexableResource)
+                        || ((SearchIndexableResource) data).xmlResId
+                                <= SearchIndexableResources.NO_DATA_RES_ID) {
+                    // Providers and raw data depend on the runtime state (accounts, Wi-Fi...)
+                    // that is not fingerprinted: always index them again, and the resources
+                    // sharing their class name too so that their rows are not duplicated.
+                    excluded.add(data.className);
+                    continue;
+                }
+                final SearchIndexableResource sir = (SearchIndexableResource) data;
+                final String packageName = TextUtils.isEmpty(sir.packageName)
+                        ? mContext.getPackageName() : sir.packageName;
+                String version = packageVersions.get(packageName);
+                if (version == null) {
+                    version = getPackageVersion(packageName);
+                    packageVersions.put(packageName, version);
+                }
+                if (version.isEmpty()) {
+                    // Unknown package version: always index it
+                    excluded.add(sir.className);
+                    continue;
+                }
+                StringBuilder sb = builders.get(sir.className);
+                if (sb == null) {
+                    sb = new StringBuilder(localeStr).append('|').append(frameworkVersion);
+                    builders.put(sir.className, sb);
+                }
+                final List<String> keys = nonIndexableKeys.get(sir.packageName);
+                sb.append('|').append(packageName)
+                        .append(':').append(version)
+                        .append(':').append(sir.xmlResId)
+                        .append(':').append(sir.iconResId)
+                        .append(':').append(sir.rank)
+                        .append(':').append(sir.enabled)
+                        .append(':').append(keys != null ? keys.hashCode() : 0);
             }
 
-            final long now = System.currentTimeMillis();
-            Log.d(LOG_TAG, "Indexing locale '" + localeStr + "' took " +
-                    (now - current) + " millis");
+            final Map<String, String> result = new HashMap<String, String>();
+            for (Map.Entry<String, StringBuilder> entry : builders.entrySet()) {
+                if (!excluded.contains(entry.getKey())) {
+                    result.put(entry.getKey(), entry.getValue().toString());
+                }
+            }
+            return result;
+        }
+
+        private String getPackageVersion(String packageName) {
+            try {
+                final PackageInfo info =
+                        mContext.getPackageManager().getPackageInfo(packageName, 0);
+                // A system package that has not been updated only changes with the build. Using
+                // the hash of its resources rather than the install time keeps the fingerprints
+                // the same on every build shipping the same resources, which is what lets an
+                // IndexSnapshot exported on a previous build be trusted.
+                final StringBuilder version = new StringBuilder().append(info.versionCode);
+                final int flags = info.applicationInfo.flags;
+                final String hash = ((flags & ApplicationInfo.FLAG_SYSTEM) != 0
+                        && (flags & ApplicationInfo.FLAG_UPDATED_SYSTEM_APP) == 0)
+                        ? getResourcesHash(info.applicationInfo.sourceDir) : null;
+                version.append('.').append(hash != null ? hash : info.lastUpdateTime);
+                // Runtime resource overlays change the resources without changing the package
+                final String[] overlays = info.applicationInfo.resourceDirs;
+                if (overlays != null) {
+                    for (String overlay : overlays) {
+                        version.append('+').append(getResourcesHash(overlay));
+                    }
+                }
+                return version.toString();
+            } catch (PackageManager.NameNotFoundException e) {
+                return EMPTY;
+            }
+        }
+
+        private Map<String, String> getIndexedFingerprints(SQLiteDatabase database,
+                String localeStr) {
+            final Map<String, String> result = new HashMap<String, String>();
+            final Cursor cursor = database.query(Tables.TABLE_META_FINGERPRINTS,
+                    new String[] {
+                            MetaFingerprintsColumns.CLASS_NAME,
+                            MetaFingerprintsColumns.FINGERPRINT },
+                    MetaFingerprintsColumns.LOCALE + " = ?", new String[] { localeStr },
+                    null, null, null);
+            try {
+                while (cursor.moveToNext()) {
+                    result.put(cursor.getString(0), cursor.getString(1));
+                }
+            } finally {
+                cursor.close();
+            }
             return result;
         }
 
+        private void updateFingerprints(SQLiteDatabase database, String localeStr,
+                Map<String, String> fingerprints) {
+            database.delete(Tables.TABLE_META_FINGERPRINTS,
+                    MetaFingerprintsColumns.LOCALE + " = ?", new String[] { localeStr });
+
+            final ContentValues values = new ContentValues();
+            for (Map.Entry<String, String> entry : fingerprints.entrySet()) {
+                values.clear();
+                values.put(MetaFingerprintsColumns.CLASS_NAME, entry.getKey());
+                values.put(MetaFingerprintsColumns.LOCALE, localeStr);
+                values.put(MetaFingerprintsColumns.FINGERPRINT, entry.getValue());
+                database.replaceOrThrow(Tables.TABLE_META_FINGERPRINTS, null, values);
+            }
+        }
+
+        /**
+         * Delete all the rows of a locale, except the ones of the given class names.
+         */
+        private void deleteRowsExcept(SQLiteDatabase database, String localeStr,
+                Set<String> classNames) {
+            final StringBuilder whereClause = new StringBuilder(IndexColumns.LOCALE);
+            whereClause.append(" = ?");
+            final String[] whereArgs = new String[classNames.size() + 1];
+            whereArgs[0] = localeStr;
+            if (classNames.size() > 0) {
+                whereClause.append(" AND (");
+                whereClause.append(IndexColumns.CLASS_NAME);
+                whereClause.append(" IS NULL OR ");
+                whereClause.append(IndexColumns.CLASS_NAME);
+                whereClause.append(" NOT IN (");
+                int n = 1;
+                for (String className : classNames) {
+                    whereClause.append(n > 1 ? ", ?" : "?");
+                    whereArgs[n++] = className;
+                }
+                whereClause.append("))");
+            }
+            database.delete(Tables.TABLE_PREFS_INDEX, whereClause.toString(), whereArgs);
+        }
+
         private boolean processDataToDelete(SQLiteDatabase database, String localeStr,
                 List<SearchIndexableData> dataToDelete) {
 
@@ -1255,6 +2062,10 @@ public class Index {
                 }
                 if (!TextUtils.isEmpty(data.className)) {
                     delete(database, IndexColumns.CLASS_NAME, data.className);
+                    // The rows are gone for every locale, so are their fingerprints
+                    database.delete(Tables.TABLE_META_FINGERPRINTS,
+                            MetaFingerprintsColumns.CLASS_NAME + " = ?",
+                            new String[] { data.className });
                 } else  {
                     if (data instanceof SearchIndexableRaw) {
                         final SearchIndexableRaw raw = (SearchIndexableRaw) data;
@@ -21,20 +21,22 @@ import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.os.Build;
+import android.text.TextUtils;
 import android.util.Log;
 
 public class IndexDatabaseHelper extends SQLiteOpenHelper {
 
     private static final String TAG = "IndexDatabaseHelper";
 
-    private static final String DATABASE_NAME = "search_index.db";
-    private static final int DATABASE_VERSION = 115;
+    static final String DATABASE_NAME = "search_index.db";
+    private static final int DATABASE_VERSION = 116;
 
     private static final String INDEX = "index";
 
     public interface Tables {
         public static final String TABLE_PREFS_INDEX = "prefs_index";
         public static final String TABLE_META_INDEX = "meta_index";
+        public static final String TABLE_META_FINGERPRINTS = "meta_fingerprints";
         public static final String TABLE_SAVED_QUERIES = "saved_queries";
     }
 
@@ -65,51 +67,45 @@ public class IndexDatabaseHelper extends SQLiteOpenHelper {
         public static final String BUILD = "build";
     }
 
+    public interface MetaFingerprintsColumns {
+        public static final String CLASS_NAME = "class_name";
+        public static final String LOCALE = "locale";
+        public static final String FINGERPRINT = "fingerprint";
+    }
+
     public interface SavedQueriesColums {
         public static final String QUERY = "query";
         public static final String TIME_STAMP = "timestamp";
     }
 
+    // Columns of the index table, in the order they are created. FTS functions like offsets()
+    // and matchinfo() refer to the columns by their position in this array.
+    static final String[] INDEX_TABLE_COLUMNS = {
+            IndexColumns.LOCALE,
+            IndexColumns.DATA_RANK,
+            IndexColumns.DATA_TITLE,
+            IndexColumns.DATA_TITLE_NORMALIZED,
+            IndexColumns.DATA_SUMMARY_ON,
+            IndexColumns.DATA_SUMMARY_ON_NORMALIZED,
+            IndexColumns.DATA_SUMMARY_OFF,
+            IndexColumns.DATA_SUMMARY_OFF_NORMALIZED,
+            IndexColumns.DATA_ENTRIES,
+            IndexColumns.DATA_KEYWORDS,
+            IndexColumns.SCREEN_TITLE,
+            IndexColumns.CLASS_NAME,
+            IndexColumns.ICON,
+            IndexColumns.INTENT_ACTION,
+            IndexColumns.INTENT_TARGET_PACKAGE,
+            IndexColumns.INTENT_TARGET_CLASS,
+            IndexColumns.ENABLED,
+            IndexColumns.DATA_KEY_REF,
+            IndexColumns.USER_ID
+    };
+
     private static final String CREATE_INDEX_TABLE =
             "CREATE VIRTUAL TABLE " + Tables.TABLE_PREFS_INDEX + " USING fts4" +
                     "(" +
-                    IndexColumns.LOCALE +
-                    ", " +
-                    IndexColumns.DATA_RANK +
-                    ", " +
-                    IndexColumns.DATA_TITLE +
-                    ", " +
-                    IndexColumns.DATA_TITLE_NORMALIZED +
-                    ", " +
-                    IndexColumns.DATA_SUMMARY_ON +
-                    ", " +
-                    IndexColumns.DATA_SUMMARY_ON_NORMALIZED +
-                    ", " +
-                    IndexColumns.DATA_SUMMARY_OFF +
-                    ", " +
-                    IndexColumns.DATA_SUMMARY_OFF_NORMALIZED +
-                    ", " +
-                    IndexColumns.DATA_ENTRIES +
-                    ", " +
-                    IndexColumns.DATA_KEYWORDS +
-                    ", " +
-                    IndexColumns.SCREEN_TITLE +
-                    ", " +
-                    IndexColumns.CLASS_NAME +
-                    ", " +
-                    IndexColumns.ICON +
-                    ", " +
-                    IndexColumns.INTENT_ACTION +
-                    ", " +
-                    IndexColumns.INTENT_TARGET_PACKAGE +
-                    ", " +
-                    IndexColumns.INTENT_TARGET_CLASS +
-                    ", " +
-                    IndexColumns.ENABLED +
-                    ", " +
-                    IndexColumns.DATA_KEY_REF +
-                    ", " +
-                    IndexColumns.USER_ID +
+                    TextUtils.join(", ", INDEX_TABLE_COLUMNS) +
                     ");";
 
     private static final String CREATE_META_TABLE =
@@ -118,6 +114,19 @@ public class IndexDatabaseHelper extends SQLiteOpenHelper {
                     MetaColumns.BUILD + " VARCHAR(32) NOT NULL" +
                     ")";
 
+    private static final String CREATE_META_FINGERPRINTS_TABLE =
+            "CREATE TABLE " + Tables.TABLE_META_FINGERPRINTS +
+                    "(" +
+                    MetaFingerprintsColumns.CLASS_NAME + " TEXT NOT NULL" +
+                    ", " +
+                    MetaFingerprintsColumns.LOCALE + " TEXT NOT NULL" +
+                    ", " +
+                    MetaFingerprintsColumns.FINGERPRINT + " TEXT NOT NULL" +
+                    ", " +
+                    "PRIMARY KEY (" + MetaFingerprintsColumns.CLASS_NAME + ", " +
+                    MetaFingerprintsColumns.LOCALE + ")" +
+                    ")";
+
     private static final String CREATE_SAVED_QUERIES_TABLE =
             "CREATE TABLE " + Tables.TABLE_SAVED_QUERIES +
                     "(" +
@@ -130,6 +139,10 @@ public class IndexDatabaseHelper extends SQLiteOpenHelper {
             "INSERT INTO " + Tables.TABLE_META_INDEX +
                     " VALUES ('" + Build.VERSION.INCREMENTAL + "');";
 
+    private static final String UPDATE_BUILD_VERSION =
+            "UPDATE " + Tables.TABLE_META_INDEX +
+                    " SET " + MetaColumns.BUILD + " = '" + Build.VERSION.INCREMENTAL + "';";
+
     private static final String SELECT_BUILD_VERSION =
             "SELECT " + MetaColumns.BUILD + " FROM " + Tables.TABLE_META_INDEX + " LIMIT 1;";
 
@@ -157,9 +170,11 @@ public class IndexDatabaseHelper extends SQLiteOpenHelper {
     private void bootstrapDB(SQLiteDatabase db) {
         db.execSQL(CREATE_INDEX_TABLE);
         db.execSQL(CREATE_META_TABLE);
+        db.execSQL(CREATE_META_FINGERPRINTS_TABLE);
         db.execSQL(CREATE_SAVED_QUERIES_TABLE);
         db.execSQL(INSERT_BUILD_VERSION);
         Log.i(TAG, "Bootstrapped database");
+        IndexSnapshot.importFromAssets(mContext, db);
     }
 
     @Override
@@ -169,9 +184,12 @@ public class IndexDatabaseHelper extends SQLiteOpenHelper {
         Log.i(TAG, "Using schema version: " + db.getVersion());
 
         if (!Build.VERSION.INCREMENTAL.equals(getBuildVersion(db))) {
-            Log.w(TAG, "Index needs to be rebuilt as build-version is not the same");
-            // We need to drop the tables and recreate them
-            reconstruct(db);
+            Log.w(TAG, "Index needs to be refreshed as build-version is not the same");
+            // Keep the indexed rows: the per-class fingerprints stored in the meta table will
+            // tell the next full index which resources really need to be parsed again.
+            clearLocalesIndexed(mContext);
+            db.execSQL(UPDATE_BUILD_VERSION);
+            IndexSnapshot.importFromAssets(mContext, db);
         } else {
             Log.i(TAG, "Index is fine");
         }
@@ -218,6 +236,19 @@ public class IndexDatabaseHelper extends SQLiteOpenHelper {
         return version;
     }
 
+    /**
+     * Returns the position of a column in the index table, as used by the FTS functions, or -1
+     * if the index table has no such column.
+     */
+    public static int getIndexColumnPosition(String columnName) {
+        for (int n = 0; n < INDEX_TABLE_COLUMNS.length; n++) {
+            if (INDEX_TABLE_COLUMNS[n].equals(columnName)) {
+                return n;
+            }
+        }
+        return -1;
+    }
+
     public static void clearLocalesIndexed(Context context) {
         context.getSharedPreferences(INDEX, 0).edit().clear().commit();
     }
@@ -233,6 +264,7 @@ public class IndexDatabaseHelper extends SQLiteOpenHelper {
     private void dropTables(SQLiteDatabase db) {
         clearLocalesIndexed(mContext);
         db.execSQL("DROP TABLE IF EXISTS " + Tables.TABLE_META_INDEX);
+        db.execSQL("DROP TABLE IF EXISTS " + Tables.TABLE_META_FINGERPRINTS);
         db.execSQL("DROP TABLE IF EXISTS " + Tables.TABLE_PREFS_INDEX);
         db.execSQL("DROP TABLE IF EXISTS " + Tables.TABLE_SAVED_QUERIES);
     }
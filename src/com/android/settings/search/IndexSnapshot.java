@@ -0,0 +1,283 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.search;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.database.sqlite.SQLiteStatement;
+import android.os.Build;
+import android.provider.SearchIndexableResource;
+import android.text.TextUtils;
+import android.util.Log;
+
+import com.android.settings.search.IndexDatabaseHelper.MetaColumns;
+import com.android.settings.search.IndexDatabaseHelper.MetaFingerprintsColumns;
+import com.android.settings.search.IndexDatabaseHelper.Tables;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A snapshot of the Index rows of the static {@link SearchIndexableResources}, i.e. the ones
+ * indexed from a preference XML, together with their fingerprints.
+ *
+ * A snapshot exported on a device running a given build can be shipped as the
+ * {@link #ASSET_NAME} asset of the Settings APK of a following build (see
+ * SETTINGS_SEARCH_SNAPSHOT_DIR in Android.mk). The snapshot records the hash of the resources of
+ * the Settings APK it was exported from (see {@link Index#getResourcesHash}), which the asset
+ * itself does not change. It is only imported, whenever the Index database is created or
+ * refreshed for a new build, if the current resources have the same hash: the resource ids
+ * stored in the rows, like the icons, are then still valid and those settings can be searched
+ * right away. As long as the framework resources did not change either, the fingerprints of
+ * the snapshot also match the current ones, so the following full index only parses the
+ * resources that changed since, and indexes the dynamic providers on top.
+ */
+class IndexSnapshot {
+
+    private static final String TAG = "IndexSnapshot";
+
+    static final String ASSET_NAME = "search_index_snapshot.db";
+
+    // Column of the snapshot meta table holding the hash of the resources it was exported from
+    private static final String RESOURCES_HASH = "resources_hash";
+
+    /**
+     * Import the snapshot shipped as an asset, if any, into the Index database. Only the rows
+     * of classes that still are static {@link SearchIndexableResources} are imported, and they
+     * replace all the rows of those classes for the locales of the snapshot.
+     */
+    static void importFromAssets(Context context, SQLiteDatabase db) {
+        final File file = new File(context.getCacheDir(), ASSET_NAME);
+        try {
+            if (!copyAsset(context, file)) {
+                return;
+            }
+            final long current = System.currentTimeMillis();
+            final SQLiteDatabase snapshot = SQLiteDatabase.openDatabase(file.getPath(), null,
+                    SQLiteDatabase.OPEN_READONLY);
+            try {
+                final String hash = Index.getResourcesHash(context.getApplicationInfo().sourceDir);
+                final String snapshotHash = getMetaValue(snapshot, RESOURCES_HASH);
+                if (hash == null || !hash.equals(snapshotHash)) {
+                    Log.i(TAG, "Ignoring snapshot of build '" + getMetaValue(snapshot,
+                            MetaColumns.BUILD) + "' as the resources have changed since");
+                    return;
+                }
+                final List<String> classNames = getStaticClassNames();
+                final List<String> locales = getLocales(snapshot);
+                final int rows;
+                db.beginTransaction();
+                try {
+                    // Rows of the previous build are not all replaced by the snapshot ones,
+                    // as their docids depend on their titles: drop them first.
+                    deleteRows(db, Tables.TABLE_PREFS_INDEX,
+                            IndexDatabaseHelper.IndexColumns.CLASS_NAME, classNames,
+                            IndexDatabaseHelper.IndexColumns.LOCALE, locales);
+                    deleteRows(db, Tables.TABLE_META_FINGERPRINTS,
+                            MetaFingerprintsColumns.CLASS_NAME, classNames,
+                            MetaFingerprintsColumns.LOCALE, locales);
+                    rows = copyRows(snapshot, db, Tables.TABLE_PREFS_INDEX,
+                            getPrefsIndexColumns(), IndexDatabaseHelper.IndexColumns.CLASS_NAME,
+                            classNames);
+                    copyRows(snapshot, db, Tables.TABLE_META_FINGERPRINTS,
+                            getFingerprintsColumns(), MetaFingerprintsColumns.CLASS_NAME,
+                            classNames);
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+                Log.i(TAG, "Imported " + rows + " rows from snapshot of build '"
+                        + getMetaValue(snapshot, MetaColumns.BUILD) + "' in "
+                        + (System.currentTimeMillis() - current) + " millis");
+            } finally {
+                snapshot.close();
+            }
+        } catch (IOException | SQLiteException e) {
+            Log.w(TAG, "Cannot import Index snapshot", e);
+        } finally {
+            file.delete();
+        }
+    }
+
+    /**
+     * Export the rows of the static {@link SearchIndexableResources} from the Index database
+     * into a new snapshot file.
+     */
+    static void export(Context context, SQLiteDatabase db, File file) {
+        file.delete();
+        final SQLiteDatabase snapshot = SQLiteDatabase.openOrCreateDatabase(file, null);
+        try {
+            final String[] prefsIndexColumns = getPrefsIndexColumns();
+            snapshot.execSQL("CREATE TABLE " + Tables.TABLE_PREFS_INDEX + " ("
+                    + TextUtils.join(", ", prefsIndexColumns) + ")");
+            snapshot.execSQL("CREATE TABLE " + Tables.TABLE_META_FINGERPRINTS + " ("
+                    + TextUtils.join(", ", getFingerprintsColumns()) + ")");
+            snapshot.execSQL("CREATE TABLE " + Tables.TABLE_META_INDEX + " ("
+                    + MetaColumns.BUILD + ", " + RESOURCES_HASH + ")");
+            snapshot.execSQL("INSERT INTO " + Tables.TABLE_META_INDEX + " VALUES (?, ?)",
+                    new Object[] { Build.FINGERPRINT,
+                            Index.getResourcesHash(context.getApplicationInfo().sourceDir) });
+
+            final List<String> classNames = getStaticClassNames();
+            final int rows = copyRows(db, snapshot, Tables.TABLE_PREFS_INDEX, prefsIndexColumns,
+                    IndexDatabaseHelper.IndexColumns.CLASS_NAME, classNames);
+            copyRows(db, snapshot, Tables.TABLE_META_FINGERPRINTS, getFingerprintsColumns(),
+                    MetaFingerprintsColumns.CLASS_NAME, classNames);
+            Log.i(TAG, "Exported " + rows + " rows to " + file);
+        } finally {
+            snapshot.close();
+        }
+    }
+
+    private static boolean copyAsset(Context context, File file) throws IOException {
+        final InputStream in;
+        try {
+            in = context.getAssets().open(ASSET_NAME);
+        } catch (FileNotFoundException e) {
+            // No snapshot for this build
+            return false;
+        }
+        try {
+            final OutputStream out = new FileOutputStream(file);
+            try {
+                final byte[] buffer = new byte[8192];
+                int count;
+                while ((count = in.read(buffer)) > 0) {
+                    out.write(buffer, 0, count);
+                }
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+        return true;
+    }
+
+    /**
+     * Copy the rows of a table whose class name is one of the given ones.
+     *
+     * @return the number of rows copied
+     */
+    private static int copyRows(SQLiteDatabase from, SQLiteDatabase to, String table,
+            String[] columns, String classNameColumn, List<String> classNames) {
+        if (classNames.isEmpty()) {
+            return 0;
+        }
+        final String selection = classNameColumn + " IN ("
+                + TextUtils.join(", ", Collections.nCopies(classNames.size(), "?")) + ")";
+        final Cursor cursor = from.query(table, columns, selection,
+                classNames.toArray(new String[classNames.size()]), null, null, null);
+        final SQLiteStatement insert = to.compileStatement("INSERT OR REPLACE INTO " + table
+                + " (" + TextUtils.join(", ", columns) + ") VALUES ("
+                + TextUtils.join(", ", Collections.nCopies(columns.length, "?")) + ")");
+        int count = 0;
+        try {
+            while (cursor.moveToNext()) {
+                insert.clearBindings();
+                for (int n = 0; n < columns.length; n++) {
+                    DatabaseUtils.bindObjectToProgram(insert, n + 1,
+                            Index.getCursorValue(cursor, n));
+                }
+                insert.executeInsert();
+                count++;
+            }
+        } finally {
+            insert.close();
+            cursor.close();
+        }
+        return count;
+    }
+
+    /**
+     * Delete the rows of a table whose class name and locale are among the given ones.
+     */
+    private static void deleteRows(SQLiteDatabase db, String table, String classNameColumn,
+            List<String> classNames, String localeColumn, List<String> locales) {
+        if (classNames.isEmpty() || locales.isEmpty()) {
+            return;
+        }
+        final List<String> args = new ArrayList<String>(classNames);
+        args.addAll(locales);
+        db.delete(table, classNameColumn + " IN ("
+                + TextUtils.join(", ", Collections.nCopies(classNames.size(), "?")) + ") AND "
+                + localeColumn + " IN ("
+                + TextUtils.join(", ", Collections.nCopies(locales.size(), "?")) + ")",
+                args.toArray(new String[args.size()]));
+    }
+
+    private static List<String> getLocales(SQLiteDatabase snapshot) {
+        final List<String> result = new ArrayList<String>();
+        final Cursor cursor = snapshot.query(true, Tables.TABLE_META_FINGERPRINTS,
+                new String[] { MetaFingerprintsColumns.LOCALE }, null, null, null, null, null,
+                null);
+        try {
+            while (cursor.moveToNext()) {
+                result.add(cursor.getString(0));
+            }
+        } finally {
+            cursor.close();
+        }
+        return result;
+    }
+
+    private static String getMetaValue(SQLiteDatabase snapshot, String column) {
+        try {
+            return DatabaseUtils.stringForQuery(snapshot,
+                    "SELECT " + column + " FROM " + Tables.TABLE_META_INDEX, null);
+        } catch (SQLiteException e) {
+            // Snapshot exported before the column was added
+            return null;
+        }
+    }
+
+    private static List<String> getStaticClassNames() {
+        final List<String> result = new ArrayList<String>();
+        for (SearchIndexableResource res : SearchIndexableResources.values()) {
+            if (res.xmlResId != SearchIndexableResources.NO_DATA_RES_ID) {
+                result.add(res.className);
+            }
+        }
+        return result;
+    }
+
+    private static String[] getPrefsIndexColumns() {
+        final String[] columns = new String[IndexDatabaseHelper.INDEX_TABLE_COLUMNS.length + 1];
+        columns[0] = IndexDatabaseHelper.IndexColumns.DOCID;
+        System.arraycopy(IndexDatabaseHelper.INDEX_TABLE_COLUMNS, 0, columns, 1,
+                IndexDatabaseHelper.INDEX_TABLE_COLUMNS.length);
+        return columns;
+    }
+
+    private static String[] getFingerprintsColumns() {
+        return new String[] {
+                MetaFingerprintsColumns.CLASS_NAME,
+                MetaFingerprintsColumns.LOCALE,
+                MetaFingerprintsColumns.FINGERPRINT
+        };
+    }
+}
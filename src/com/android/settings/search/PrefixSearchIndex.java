@@ -0,0 +1,368 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.search;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * An in-memory snapshot of the enabled rows of the Index for one locale, answering prefix
+ * queries without going through SQLite.
+ *
+ * Each row is tokenized and its normalized tokens are stored into two prefix tries: one for the
+ * primary columns (title and keywords) and one for the secondary columns (summaries and entries).
+ * A query matches a row when each of its tokens is the prefix of a token of the row. As for the
+ * SQL search, the rows matching on the primary columns come first and the rows only matching on
+ * the secondary columns come last, each group being ordered by rank.
+ *
+ * A snapshot of search results, see {@link #fromSearchResults}, tokenizes the rows like the
+ * SQLite FTS "simple" tokenizer instead, over the same columns as the SQL search, so that it
+ * answers the queries accepted by {@link #canNarrow} exactly like the database.
+ */
+public class PrefixSearchIndex {
+
+    private static final String HYPHENS = "[-\u2011]";
+
+    private static final Pattern REMOVE_DIACRITICALS_PATTERN
+            = Pattern.compile("\\p{InCombiningDiacriticalMarks}+");
+
+    private final String mLocale;
+    private final String[] mColumnNames;
+    private final List<Object[]> mRows = new ArrayList<Object[]>();
+    private final List<Integer> mRanks = new ArrayList<Integer>();
+
+    private final Node mPrimaryTrie = new Node();
+    private final Node mSecondaryTrie = new Node();
+
+    /**
+     * Build the snapshot from a cursor. The first columns of the cursor must be the result
+     * columns, the first one being the rank.
+     *
+     * @param primaryColumns the indices of the cursor columns to match first
+     * @param secondaryColumns the indices of the cursor columns to match last
+     */
+    PrefixSearchIndex(String locale, String[] columnNames, Cursor cursor,
+            int[] primaryColumns, int[] secondaryColumns) {
+        this(locale, columnNames);
+        while (cursor.moveToNext()) {
+            final int id = addRow(cursor);
+            for (int column : primaryColumns) {
+                addTokens(mPrimaryTrie, cursor.getString(column), id);
+            }
+            for (int column : secondaryColumns) {
+                addTokens(mSecondaryTrie, cursor.getString(column), id);
+            }
+        }
+    }
+
+    /**
+     * Build a snapshot of the results returned by {@link Index#search(String)}. As a longer
+     * query can only match a subset of those results, the snapshot can then answer it without
+     * going through the database again.
+     */
+    public static PrefixSearchIndex fromSearchResults(String locale, Cursor cursor) {
+        final PrefixSearchIndex result = new PrefixSearchIndex(locale, cursor.getColumnNames());
+        while (cursor.moveToNext()) {
+            final int id = result.addRow(cursor);
+            // The normalized columns of the Index are computed from the selected ones
+            final String title = cursor.getString(Index.COLUMN_INDEX_TITLE);
+            final String summaryOn = cursor.getString(Index.COLUMN_INDEX_SUMMARY_ON);
+            final String summaryOff = cursor.getString(Index.COLUMN_INDEX_SUMMARY_OFF);
+            addFtsTokens(result.mPrimaryTrie, title, id);
+            addFtsTokens(result.mPrimaryTrie, Index.normalizeString(title), id);
+            addFtsTokens(result.mPrimaryTrie, cursor.getString(Index.COLUMN_INDEX_KEYWORDS), id);
+            addFtsTokens(result.mSecondaryTrie, summaryOn, id);
+            addFtsTokens(result.mSecondaryTrie, Index.normalizeString(summaryOn), id);
+            addFtsTokens(result.mSecondaryTrie, summaryOff, id);
+            addFtsTokens(result.mSecondaryTrie, Index.normalizeString(summaryOff), id);
+            addFtsTokens(result.mSecondaryTrie, cursor.getString(Index.COLUMN_INDEX_ENTRIES), id);
+        }
+        cursor.moveToPosition(-1);
+        return result;
+    }
+
+    private PrefixSearchIndex(String locale, String[] columnNames) {
+        mLocale = locale;
+        mColumnNames = columnNames;
+    }
+
+    private int addRow(Cursor cursor) {
+        final Object[] values = new Object[mColumnNames.length];
+        for (int n = 0; n < values.length; n++) {
+            values[n] = Index.getCursorValue(cursor, n);
+        }
+        final int id = mRows.size();
+        mRows.add(values);
+        mRanks.add(cursor.getInt(0));
+        return id;
+    }
+
+    /**
+     * Whether the snapshot of the results of a query answers a longer query the same way as
+     * {@link Index#search(String)}. Only single word ASCII queries qualify: the SQL search
+     * matches the first word of a query on each column and the next ones on any column, and its
+     * tokenizer only folds the case of ASCII letters.
+     */
+    public static boolean canNarrow(String previous, String query) {
+        return query.length() > previous.length() && query.startsWith(previous)
+                && isAsciiWord(previous) && isAsciiWord(query);
+    }
+
+    private static boolean isAsciiWord(String text) {
+        if (text.isEmpty()) {
+            return false;
+        }
+        for (int n = 0; n < text.length(); n++) {
+            final char c = text.charAt(n);
+            if (c >= 0x80 || !Character.isLetterOrDigit(c)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public String getLocale() {
+        return mLocale;
+    }
+
+    public int getRowCount() {
+        return mRows.size();
+    }
+
+    /**
+     * Search the rows matching a query.
+     *
+     * @return a cursor with the same columns as the ones given when building the snapshot
+     */
+    public Cursor search(String query) {
+        final MatrixCursor cursor = new MatrixCursor(mColumnNames);
+        final String[] tokens = tokenize(query);
+        if (tokens.length == 0) {
+            return cursor;
+        }
+
+        final BitSet primary = match(mPrimaryTrie, tokens);
+        final BitSet secondary = match(mSecondaryTrie, tokens);
+        secondary.andNot(primary);
+
+        addRows(cursor, primary);
+        addRows(cursor, secondary);
+        return cursor;
+    }
+
+    private BitSet match(Node trie, String[] tokens) {
+        BitSet result = null;
+        for (String token : tokens) {
+            final BitSet ids = new BitSet(mRows.size());
+            final Node node = trie.find(token);
+            if (node != null) {
+                node.collect(ids);
+            }
+            if (result == null) {
+                result = ids;
+            } else {
+                result.and(ids);
+            }
+            if (result.isEmpty()) {
+                break;
+            }
+        }
+        return result;
+    }
+
+    private void addRows(MatrixCursor cursor, BitSet ids) {
+        final List<Integer> sorted = new ArrayList<Integer>(ids.cardinality());
+        for (int id = ids.nextSetBit(0); id >= 0; id = ids.nextSetBit(id + 1)) {
+            sorted.add(id);
+        }
+        // Stable sort: rows with the same rank keep the order in which they were indexed
+        Collections.sort(sorted, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer lhs, Integer rhs) {
+                return Integer.compare(mRanks.get(lhs), mRanks.get(rhs));
+            }
+        });
+        for (Integer id : sorted) {
+            cursor.addRow(mRows.get(id));
+        }
+    }
+
+    private static void addTokens(Node trie, String text, int id) {
+        if (text == null) {
+            return;
+        }
+        for (String token : tokenize(text)) {
+            trie.insert(token, id);
+        }
+        // Hyphenated words can also be searched as a single word, as for the normalized columns
+        final String noHyphens = text.replaceAll(HYPHENS, "");
+        if (noHyphens.length() != text.length()) {
+            for (String token : tokenize(noHyphens)) {
+                trie.insert(token, id);
+            }
+        }
+    }
+
+    /**
+     * Add the tokens of a text as split by the SQLite FTS "simple" tokenizer: ASCII letters and
+     * digits, and any non ASCII character, are token characters, and only ASCII letters are
+     * folded to lower case.
+     */
+    private static void addFtsTokens(Node trie, String text, int id) {
+        if (text == null) {
+            return;
+        }
+        final int length = text.length();
+        int start = -1;
+        for (int n = 0; n <= length; n++) {
+            final boolean isTokenChar = n < length && isFtsTokenChar(text.charAt(n));
+            if (isTokenChar && start < 0) {
+                start = n;
+            } else if (!isTokenChar && start >= 0) {
+                trie.insert(toAsciiLowerCase(text.substring(start, n)), id);
+                start = -1;
+            }
+        }
+    }
+
+    private static boolean isFtsTokenChar(char c) {
+        return c >= 0x80 || (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z')
+                || (c >= '0' && c <= '9');
+    }
+
+    private static String toAsciiLowerCase(String text) {
+        final char[] chars = text.toCharArray();
+        for (int n = 0; n < chars.length; n++) {
+            if (chars[n] >= 'A' && chars[n] <= 'Z') {
+                chars[n] += 'a' - 'A';
+            }
+        }
+        return new String(chars);
+    }
+
+    /**
+     * Split a text into normalized tokens: lower case, without diacritical marks and without
+     * any character that is not a letter or a digit.
+     */
+    static String[] tokenize(String text) {
+        if (text == null || text.isEmpty()) {
+            return new String[0];
+        }
+        final String normalized = REMOVE_DIACRITICALS_PATTERN.matcher(
+                Normalizer.normalize(text, Normalizer.Form.NFD)).replaceAll("").toLowerCase();
+        final List<String> tokens = new ArrayList<String>();
+        final int length = normalized.length();
+        int start = -1;
+        for (int n = 0; n <= length; n++) {
+            final boolean isTokenChar = n < length
+                    && Character.isLetterOrDigit(normalized.charAt(n));
+            if (isTokenChar && start < 0) {
+                start = n;
+            } else if (!isTokenChar && start >= 0) {
+                tokens.add(normalized.substring(start, n));
+                start = -1;
+            }
+        }
+        return tokens.toArray(new String[tokens.size()]);
+    }
+
+    /**
+     * A trie node. Children are kept in arrays sorted by character to stay compact, and the ids
+     * of the rows having a token ending on this node are kept in a growing int array.
+     */
+    private static class Node {
+        private static final char[] NO_KEYS = new char[0];
+        private static final Node[] NO_CHILDREN = new Node[0];
+
+        private char[] mKeys = NO_KEYS;
+        private Node[] mChildren = NO_CHILDREN;
+        private int[] mIds;
+        private int mIdCount;
+
+        void insert(String token, int id) {
+            Node node = this;
+            for (int n = 0; n < token.length(); n++) {
+                node = node.getOrCreateChild(token.charAt(n));
+            }
+            node.addId(id);
+        }
+
+        Node find(String prefix) {
+            Node node = this;
+            for (int n = 0; n < prefix.length() && node != null; n++) {
+                node = node.getChild(prefix.charAt(n));
+            }
+            return node;
+        }
+
+        void collect(BitSet ids) {
+            for (int n = 0; n < mIdCount; n++) {
+                ids.set(mIds[n]);
+            }
+            for (Node child : mChildren) {
+                child.collect(ids);
+            }
+        }
+
+        private Node getChild(char key) {
+            final int index = Arrays.binarySearch(mKeys, key);
+            return (index >= 0) ? mChildren[index] : null;
+        }
+
+        private Node getOrCreateChild(char key) {
+            int index = Arrays.binarySearch(mKeys, key);
+            if (index >= 0) {
+                return mChildren[index];
+            }
+            index = -index - 1;
+            final int count = mKeys.length;
+            final char[] keys = new char[count + 1];
+            final Node[] children = new Node[count + 1];
+            System.arraycopy(mKeys, 0, keys, 0, index);
+            System.arraycopy(mChildren, 0, children, 0, index);
+            System.arraycopy(mKeys, index, keys, index + 1, count - index);
+            System.arraycopy(mChildren, index, children, index + 1, count - index);
+            keys[index] = key;
+            children[index] = new Node();
+            mKeys = keys;
+            mChildren = children;
+            return children[index];
+        }
+
+        private void addId(int id) {
+            // Rows are inserted in increasing id order, so duplicates can only be the last one
+            if (mIdCount > 0 && mIds[mIdCount - 1] == id) {
+                return;
+            }
+            if (mIds == null) {
+                mIds = new int[2];
+            } else if (mIdCount == mIds.length) {
+                mIds = Arrays.copyOf(mIds, mIdCount * 2);
+            }
+            mIds[mIdCount++] = id;
+        }
+    }
+}
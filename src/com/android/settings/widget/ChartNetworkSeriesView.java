@@ -28,11 +28,14 @@ import android.graphics.RectF;
 import android.net.NetworkStatsHistory;
 import android.util.AttributeSet;
 import android.util.Log;
+import android.util.LruCache;
 import android.view.View;
 
 import com.android.internal.util.Preconditions;
 import com.android.settings.R;
 
+import java.util.Objects;
+
 import static android.text.format.DateUtils.DAY_IN_MILLIS;
 import static android.text.format.DateUtils.WEEK_IN_MILLIS;
 
@@ -46,6 +49,8 @@ public class ChartNetworkSeriesView extends View {
 
     private static final boolean ESTIMATE_ENABLED = false;
 
+    private static final int PATH_CACHE_SIZE = 4;
+
     private ChartAxis mHoriz;
     private ChartAxis mVert;
 
@@ -60,6 +65,9 @@ public class ChartNetworkSeriesView extends View {
     private Path mPathFill;
     private Path mPathEstimate;
 
+    /** Recent paths, as the vertical axis steps back and forth while sweeping. */
+    private final LruCache<PathKey, SeriesPaths> mPathCache = new LruCache<>(PATH_CACHE_SIZE);
+
     private int mSafeRegion;
 
     private long mStart;
@@ -105,9 +113,7 @@ public class ChartNetworkSeriesView extends View {
 
         a.recycle();
 
-        mPathStroke = new Path();
-        mPathFill = new Path();
-        mPathEstimate = new Path();
+        usePaths(new SeriesPaths());
     }
 
     void init(ChartAxis horiz, ChartAxis vert) {
@@ -145,6 +151,9 @@ public class ChartNetworkSeriesView extends View {
     }
 
     public void bindNetworkStats(NetworkStatsHistory stats) {
+        if (stats != mStats) {
+            mPathCache.evictAll();
+        }
         mStats = stats;
         invalidatePath();
         invalidate();
@@ -176,34 +185,59 @@ public class ChartNetworkSeriesView extends View {
     }
 
     /**
-     * Erase any existing {@link Path} and generate series outline based on
-     * currently bound {@link NetworkStatsHistory} data.
+     * Use the {@link Path} of the series outline for the current bounds and
+     * size, generating it from the currently bound {@link NetworkStatsHistory}
+     * data unless it is cached.
      */
     private void generatePath() {
-        if (LOGD) Log.d(TAG, "generatePath()");
-
-        mMax = 0;
-        mPathStroke.reset();
-        mPathFill.reset();
-        mPathEstimate.reset();
         mPathValid = true;
 
         // bail when not enough stats to render
         if (mStats == null || mStats.size() < 2) {
+            usePaths(new SeriesPaths());
             return;
         }
 
+        final PathKey key = new PathKey(mStats, mStart, mEnd, mEndTime, getWidth(), getHeight(),
+                mHoriz.convertToPoint(mStart), mHoriz.convertToPoint(mEnd),
+                mVert.convertToValue(0), mVert.convertToValue(getHeight()));
+        SeriesPaths paths = mPathCache.get(key);
+        if (paths == null) {
+            paths = buildPaths();
+            mPathCache.put(key, paths);
+        }
+        usePaths(paths);
+    }
+
+    private void usePaths(SeriesPaths paths) {
+        mPathStroke = paths.stroke;
+        mPathFill = paths.fill;
+        mPathEstimate = paths.estimate;
+        mMax = paths.max;
+        mMaxEstimate = paths.maxEstimate;
+        invalidate();
+    }
+
+    /**
+     * Generate series outline based on currently bound
+     * {@link NetworkStatsHistory} data.
+     */
+    private SeriesPaths buildPaths() {
+        if (LOGD) Log.d(TAG, "buildPaths()");
+
+        final SeriesPaths paths = new SeriesPaths();
+
         final int width = getWidth();
         final int height = getHeight();
 
-        boolean started = false;
         float lastX = 0;
         float lastY = height;
         long lastTime = mHoriz.convertToValue(lastX);
 
         // move into starting position
-        mPathStroke.moveTo(lastX, lastY);
-        mPathFill.moveTo(lastX, lastY);
+        paths.stroke.moveTo(lastX, lastY);
+        paths.fill.moveTo(lastX, lastY);
+        final Decimator decimator = new Decimator(paths.stroke, paths.fill, width);
 
         // TODO: count fractional data from first bucket crossing start;
         // currently it only accepts first full bucket.
@@ -234,13 +268,11 @@ public class ChartNetworkSeriesView extends View {
 
             if (lastTime != startTime) {
                 // gap in buckets; line to start of current bucket
-                mPathStroke.lineTo(startX, startY);
-                mPathFill.lineTo(startX, startY);
+                decimator.lineTo(startX, startY);
             }
 
             // always draw to end of current bucket
-            mPathStroke.lineTo(endX, endY);
-            mPathFill.lineTo(endX, endY);
+            decimator.lineTo(endX, endY);
 
             lastX = endX;
             lastY = endY;
@@ -251,26 +283,26 @@ public class ChartNetworkSeriesView extends View {
         if (lastTime < mEndTime) {
             lastX = mHoriz.convertToPoint(mEndTime);
 
-            mPathStroke.lineTo(lastX, lastY);
-            mPathFill.lineTo(lastX, lastY);
+            decimator.lineTo(lastX, lastY);
         }
+        decimator.flush();
 
         if (LOGD) {
             final RectF bounds = new RectF();
-            mPathFill.computeBounds(bounds, true);
+            paths.fill.computeBounds(bounds, true);
             Log.d(TAG, "onLayout() rendered with bounds=" + bounds.toString() + " and totalData="
                     + totalData);
         }
 
         // drop to bottom of graph from current location
-        mPathFill.lineTo(lastX, height);
-        mPathFill.lineTo(0, height);
+        paths.fill.lineTo(lastX, height);
+        paths.fill.lineTo(0, height);
 
-        mMax = totalData;
+        paths.max = totalData;
 
         if (ESTIMATE_ENABLED) {
             // build estimated data
-            mPathEstimate.moveTo(lastX, lastY);
+            paths.estimate.moveTo(lastX, lastY);
 
             final long now = System.currentTimeMillis();
             final long bucketDuration = mStats.getBucketDuration();
@@ -295,13 +327,13 @@ public class ChartNetworkSeriesView extends View {
                 lastX = mHoriz.convertToPoint(lastTime + futureTime);
                 lastY = mVert.convertToPoint(totalData);
 
-                mPathEstimate.lineTo(lastX, lastY);
+                paths.estimate.lineTo(lastX, lastY);
             }
 
-            mMaxEstimate = totalData;
+            paths.maxEstimate = totalData;
         }
 
-        invalidate();
+        return paths;
     }
 
     public void setEndTime(long endTime) {
@@ -365,4 +397,111 @@ public class ChartNetworkSeriesView extends View {
         canvas.restoreToCount(save);
 
     }
+
+    /**
+     * Outline of the series for given bounds and size.
+     */
+    private static class SeriesPaths {
+        final Path stroke = new Path();
+        final Path fill = new Path();
+        final Path estimate = new Path();
+        long max;
+        long maxEstimate;
+    }
+
+    /**
+     * Everything the outline of the series depends on.
+     */
+    private static class PathKey {
+        final NetworkStatsHistory stats;
+        final long start;
+        final long end;
+        final long endTime;
+        final int width;
+        final int height;
+        final float startPoint;
+        final float endPoint;
+        final long topValue;
+        final long bottomValue;
+
+        PathKey(NetworkStatsHistory stats, long start, long end, long endTime, int width,
+                int height, float startPoint, float endPoint, long topValue, long bottomValue) {
+            this.stats = stats;
+            this.start = start;
+            this.end = end;
+            this.endTime = endTime;
+            this.width = width;
+            this.height = height;
+            this.startPoint = startPoint;
+            this.endPoint = endPoint;
+            this.topValue = topValue;
+            this.bottomValue = bottomValue;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof PathKey)) {
+                return false;
+            }
+            final PathKey other = (PathKey) o;
+            return stats == other.stats && start == other.start && end == other.end
+                    && endTime == other.endTime && width == other.width
+                    && height == other.height && startPoint == other.startPoint
+                    && endPoint == other.endPoint && topValue == other.topValue
+                    && bottomValue == other.bottomValue;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(System.identityHashCode(stats), start, end, endTime, width,
+                    height, startPoint, endPoint, topValue, bottomValue);
+        }
+    }
+
+    /**
+     * Adds the vertices of the series to the stroke and fill paths, keeping
+     * only the first and last of those within each pixel column. As the series
+     * is cumulative they are the min and max of their column, so the outline
+     * looks the same with at most about two vertices per column.
+     */
+    private static class Decimator {
+        private final Path mStroke;
+        private final Path mFill;
+        private final int mWidth;
+
+        private int mColumn = Integer.MIN_VALUE;
+        private boolean mPending;
+        private float mPendingX;
+        private float mPendingY;
+
+        Decimator(Path stroke, Path fill, int width) {
+            mStroke = stroke;
+            mFill = fill;
+            mWidth = width;
+        }
+
+        void lineTo(float x, float y) {
+            // vertices off screen are gathered in a column on each side
+            final int column = (int) Math.floor(Math.max(-1, Math.min(x, mWidth)));
+            if (column == mColumn) {
+                mPending = true;
+                mPendingX = x;
+                mPendingY = y;
+                return;
+            }
+            flush();
+            mColumn = column;
+            mStroke.lineTo(x, y);
+            mFill.lineTo(x, y);
+        }
+
+        /** Add the last vertex of the current column, if not added yet. */
+        void flush() {
+            if (mPending) {
+                mPending = false;
+                mStroke.lineTo(mPendingX, mPendingY);
+                mFill.lineTo(mPendingX, mPendingY);
+            }
+        }
+    }
 }
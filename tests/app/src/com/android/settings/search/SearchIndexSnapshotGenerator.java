@@ -0,0 +1,66 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.search;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.support.test.filters.LargeTest;
+import android.test.InstrumentationTestCase;
+import android.util.Log;
+
+import java.io.File;
+import java.util.Locale;
+
+/**
+ * Generates the search index snapshot shipped with a build, see {@link IndexSnapshot}.
+ *
+ * Run it on a device running the build, after switching to each default locale of the product.
+ * The Index keeps the rows of the locales indexed before, so the last snapshot holds them all:
+ *
+ * adb shell am instrument -w -e class com.android.settings.search.SearchIndexSnapshotGenerator \
+ *     com.android.settings.tests/android.support.test.runner.AndroidJUnitRunner
+ * adb pull /data/data/com.android.settings/files/search_index_snapshot.db
+ *
+ * and point SETTINGS_SEARCH_SNAPSHOT_DIR to the directory of the pulled file.
+ */
+@LargeTest
+public class SearchIndexSnapshotGenerator extends InstrumentationTestCase {
+
+    private static final String TAG = "SearchIndexSnapshotGenerator";
+
+    private static final long INDEXING_TIMEOUT_MILLIS = 120 * 1000;
+
+    public void testGenerateSnapshot() throws Exception {
+        final Context context = getInstrumentation().getTargetContext();
+        final String localeStr = Locale.getDefault().toString();
+
+        IndexDatabaseHelper.clearLocalesIndexed(context);
+        Index.getInstance(context).update();
+
+        final long timeout = SystemClock.elapsedRealtime() + INDEXING_TIMEOUT_MILLIS;
+        while (!IndexDatabaseHelper.isLocaleAlreadyIndexed(context, localeStr)) {
+            assertTrue("Indexing timed out", SystemClock.elapsedRealtime() < timeout);
+            SystemClock.sleep(100);
+        }
+
+        final File file = new File(context.getFilesDir(), IndexSnapshot.ASSET_NAME);
+        IndexSnapshot.export(context,
+                IndexDatabaseHelper.getInstance(context).getReadableDatabase(), file);
+        assertTrue(file.exists());
+        Log.i(TAG, "Snapshot for locale '" + localeStr + "' written to " + file);
+    }
+}
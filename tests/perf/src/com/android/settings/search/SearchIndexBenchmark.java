@@ -0,0 +1,288 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.search;
+
+import android.app.Activity;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.AsyncTask;
+import android.os.Bundle;
+import android.os.SystemClock;
+import android.provider.SearchIndexableResource;
+import android.support.test.filters.LargeTest;
+import android.test.InstrumentationTestCase;
+import android.util.Log;
+
+import com.android.settings.search.IndexDatabaseHelper.Tables;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks of the search {@link Index}: full index, incremental index, per class updates and
+ * queries, against the real {@link SearchIndexableResources} plus synthetic raw rows standing in
+ * for the remote SearchIndexablesProviders of other packages.
+ *
+ * The measures are reported as instrumentation status results and logged, see the README.
+ */
+@LargeTest
+public class SearchIndexBenchmark extends InstrumentationTestCase {
+
+    private static final String TAG = "SearchIndexBenchmark";
+
+    private static final long INDEXING_TIMEOUT_MILLIS = 300 * 1000;
+
+    // Synthetic providers: SYNTHETIC_PROVIDERS packages of SYNTHETIC_ROWS_PER_PROVIDER rows each
+    private static final int SYNTHETIC_PROVIDERS = 4;
+    private static final int SYNTHETIC_ROWS_PER_PROVIDER = 500;
+    private static final String SYNTHETIC_PACKAGE = "com.android.settings.perf.synthetic";
+
+    private static final int INDEX_ITERATIONS = 3;
+    private static final int QUERY_ITERATIONS = 20;
+    private static final int MAX_PREFIX_LENGTH = 6;
+
+    private static final String[] WORDS = {
+            "wireless", "network", "bluetooth", "display", "brightness", "battery", "storage",
+            "memory", "sound", "volume", "notification", "location", "security", "screen",
+            "lock", "account", "language", "keyboard", "backup", "reset", "date", "time",
+            "accessibility", "printing", "developer", "option", "cellular", "data", "usage",
+            "hotspot", "tethering", "wallpaper", "font", "sleep", "vibrate", "ringtone",
+            "alarm", "interrupt", "priority", "application", "permission", "default", "user",
+            "guest", "cast", "nfc", "payment", "fingerprint", "encryption", "certificate"
+    };
+
+    private Context mContext;
+    private Index mIndex;
+    private final Bundle mResults = new Bundle();
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mContext = getInstrumentation().getTargetContext();
+        mIndex = Index.getInstance(mContext);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        getInstrumentation().sendStatus(Activity.RESULT_OK, mResults);
+        // The next full index drops the synthetic rows, as they have no fingerprint
+        IndexDatabaseHelper.clearLocalesIndexed(mContext);
+        super.tearDown();
+    }
+
+    public void testFullIndex() throws Exception {
+        final long[] times = new long[INDEX_ITERATIONS];
+        for (int n = 0; n < INDEX_ITERATIONS; n++) {
+            clearIndex();
+            times[n] = timeFullIndex();
+        }
+        reportMillis("full_index", times);
+        report("rows", getRowCount());
+        report("database_bytes", getDatabaseSize());
+    }
+
+    public void testIncrementalIndex() throws Exception {
+        clearIndex();
+        timeFullIndex();
+
+        // Nothing changed since the previous full index: only the fingerprints are checked and
+        // the synthetic rows, which have none, are written again
+        final long[] times = new long[INDEX_ITERATIONS];
+        for (int n = 0; n < INDEX_ITERATIONS; n++) {
+            IndexDatabaseHelper.clearLocalesIndexed(mContext);
+            times[n] = timeFullIndex();
+        }
+        reportMillis("incremental_index", times);
+        report("database_bytes", getDatabaseSize());
+    }
+
+    public void testUpdateFromClassNameResource() throws Exception {
+        ensureIndexed();
+
+        final List<Long> times = new ArrayList<Long>();
+        for (SearchIndexableResource res : SearchIndexableResources.values()) {
+            final long start = SystemClock.elapsedRealtime();
+            mIndex.updateFromClassNameResource(res.className, true, true);
+            waitForIndexing();
+            times.add(SystemClock.elapsedRealtime() - start);
+        }
+        final long[] values = new long[times.size()];
+        for (int n = 0; n < values.length; n++) {
+            values[n] = times.get(n);
+        }
+        reportMillis("update_class", values);
+    }
+
+    public void testSearch() throws Exception {
+        ensureIndexed();
+
+        for (int length = 1; length <= MAX_PREFIX_LENGTH; length++) {
+            final List<String> queries = new ArrayList<String>();
+            for (String word : WORDS) {
+                final String query = word.substring(0, Math.min(length, word.length()));
+                if (!queries.contains(query)) {
+                    queries.add(query);
+                }
+            }
+            final long[] times = new long[queries.size() * QUERY_ITERATIONS];
+            int count = 0;
+            for (int n = 0; n < QUERY_ITERATIONS; n++) {
+                for (String query : queries) {
+                    final long start = System.nanoTime();
+                    final Cursor cursor = mIndex.search(query);
+                    cursor.getCount();
+                    cursor.close();
+                    times[count++] = System.nanoTime() - start;
+                }
+            }
+            Arrays.sort(times);
+            report("search_prefix_" + length + "_p50_us",
+                    TimeUnit.NANOSECONDS.toMicros(percentile(times, 50)));
+            report("search_prefix_" + length + "_p99_us",
+                    TimeUnit.NANOSECONDS.toMicros(percentile(times, 99)));
+        }
+    }
+
+    private void ensureIndexed() throws Exception {
+        if (!IndexDatabaseHelper.isLocaleAlreadyIndexed(mContext,
+                Locale.getDefault().toString())) {
+            clearIndex();
+            timeFullIndex();
+        }
+    }
+
+    /**
+     * Run a full index with the synthetic providers and wait for it.
+     *
+     * @return the time taken in millis
+     */
+    private long timeFullIndex() throws Exception {
+        final long start = SystemClock.elapsedRealtime();
+        addSyntheticProviders();
+        mIndex.update();
+        waitForIndexing();
+        final long time = SystemClock.elapsedRealtime() - start;
+        assertTrue("Locale not indexed", IndexDatabaseHelper.isLocaleAlreadyIndexed(mContext,
+                Locale.getDefault().toString()));
+        return time;
+    }
+
+    /**
+     * Add the rows the synthetic providers would return. They are generated from a fixed seed
+     * so that each run indexes the same data.
+     */
+    private void addSyntheticProviders() {
+        final Random random = new Random(0);
+        for (int p = 0; p < SYNTHETIC_PROVIDERS; p++) {
+            final String packageName = SYNTHETIC_PACKAGE + p;
+            final String screenTitle = words(random, 2);
+            for (int n = 0; n < SYNTHETIC_ROWS_PER_PROVIDER; n++) {
+                final SearchIndexableRaw raw = new SearchIndexableRaw(mContext);
+                raw.title = words(random, 1 + random.nextInt(3));
+                raw.summaryOn = words(random, 3 + random.nextInt(5));
+                raw.summaryOff = (n % 3 == 0) ? words(random, 3) : null;
+                raw.keywords = words(random, random.nextInt(4));
+                raw.screenTitle = screenTitle;
+                raw.className = packageName + ".Settings" + (n % 20);
+                raw.packageName = packageName;
+                raw.key = packageName + ".key" + n;
+                raw.rank = Ranking.RANK_OTHERS;
+                raw.intentAction = packageName + ".SETTINGS";
+                raw.intentTargetPackage = packageName;
+                mIndex.addIndexableData(raw);
+            }
+        }
+    }
+
+    private static String words(Random random, int count) {
+        final StringBuilder sb = new StringBuilder();
+        for (int n = 0; n < count; n++) {
+            if (n > 0) {
+                sb.append(' ');
+            }
+            sb.append(WORDS[random.nextInt(WORDS.length)]);
+        }
+        return sb.toString();
+    }
+
+    private void clearIndex() {
+        final SQLiteDatabase db = IndexDatabaseHelper.getInstance(mContext).getWritableDatabase();
+        db.delete(Tables.TABLE_PREFS_INDEX, null, null);
+        db.delete(Tables.TABLE_META_FINGERPRINTS, null, null);
+        db.execSQL("VACUUM");
+        IndexDatabaseHelper.clearLocalesIndexed(mContext);
+    }
+
+    /**
+     * Wait for the Index to process all the pending updates. Updates are run on the serial
+     * AsyncTask executor and post their indexing task on it, so a marker posted twice runs once
+     * they are all done.
+     */
+    private void waitForIndexing() throws InterruptedException {
+        final CountDownLatch latch = new CountDownLatch(1);
+        AsyncTask.execute(new Runnable() {
+            @Override
+            public void run() {
+                AsyncTask.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        latch.countDown();
+                    }
+                });
+            }
+        });
+        assertTrue("Indexing timed out",
+                latch.await(INDEXING_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+    }
+
+    private int getRowCount() {
+        final Cursor cursor = IndexDatabaseHelper.getInstance(mContext).getReadableDatabase()
+                .rawQuery("SELECT COUNT(*) FROM " + Tables.TABLE_PREFS_INDEX, null);
+        try {
+            return cursor.moveToFirst() ? cursor.getInt(0) : 0;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private long getDatabaseSize() {
+        return mContext.getDatabasePath(IndexDatabaseHelper.DATABASE_NAME).length();
+    }
+
+    private static long percentile(long[] sorted, int percentile) {
+        final int index = (int) Math.ceil(percentile / 100.0 * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(index, sorted.length - 1))];
+    }
+
+    private void reportMillis(String name, long[] times) {
+        Arrays.sort(times);
+        report(name + "_min_ms", times[0]);
+        report(name + "_median_ms", percentile(times, 50));
+        report(name + "_max_ms", times[times.length - 1]);
+    }
+
+    private void report(String name, long value) {
+        Log.i(TAG, name + ": " + value);
+        mResults.putLong(name, value);
+    }
+}
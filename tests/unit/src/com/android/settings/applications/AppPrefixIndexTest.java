@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.applications;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.util.Arrays;
+
+public class AppPrefixIndexTest extends AndroidTestCase {
+
+    // Normalized labels, as returned by AppEntry.getNormalizedLabel()
+    private static final String[] LABELS = {
+            "google play store",
+            "play games",
+            "calculator",
+            "calendar",
+            null,
+            "camera",
+            "google",
+            "android system webview",
+            "system ui",
+            "clock",
+    };
+
+    private AppPrefixIndex mIndex;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        mIndex = new AppPrefixIndex(LABELS);
+    }
+
+    @SmallTest
+    public void testMultiWordLabels() {
+        assertMatches("play", 0, 1);
+        assertMatches("store", 0);
+        assertMatches("sys", 7, 8);
+        assertMatches("ui", 8);
+        assertMatches("webview", 7);
+        assertMatches("oogle");
+    }
+
+    @SmallTest
+    public void testPrefixWithSpace() {
+        assertMatches("google ", 0);
+        assertMatches("google p", 0);
+        assertMatches("play g", 1);
+        assertMatches("system w", 7);
+        assertMatches("play s", 0);
+    }
+
+    @SmallTest
+    public void testExtendedPrefix() {
+        assertMatches("c", 2, 3, 5, 9);
+        assertMatches("ca", 2, 3, 5);
+        assertMatches("cal", 2, 3);
+        assertMatches("calc", 2);
+        assertMatches("calcx");
+    }
+
+    @SmallTest
+    public void testBackspacedPrefix() {
+        assertMatches("calc", 2);
+        assertMatches("cal", 2, 3);
+        assertMatches("ca", 2, 3, 5);
+        assertMatches("c", 2, 3, 5, 9);
+        // Another prefix than the previous ones
+        assertMatches("g", 0, 1, 6);
+        assertMatches("go", 0, 6);
+    }
+
+    @SmallTest
+    public void testSameResultsAsScan() {
+        final String[] prefixes = {
+                "g", "go", "goo", "google", "google ", "google pl", "google p", "goo", "p",
+                "pl", "play", "play ", "play g", "a", "an", "android s", "s", "sy", "x",
+                "c", "cl", "clock", "clocks", "cam", "ca", "cale", "e", "calendar", " ",
+        };
+        for (String prefix : prefixes) {
+            assertEquals(prefix, Arrays.toString(scan(prefix)),
+                    Arrays.toString(mIndex.match(prefix)));
+        }
+    }
+
+    /**
+     * The scan the index replaces.
+     */
+    private static boolean[] scan(String prefix) {
+        final boolean[] matches = new boolean[LABELS.length];
+        for (int i = 0; i < LABELS.length; i++) {
+            final String label = LABELS[i];
+            matches[i] = label != null
+                    && (label.startsWith(prefix) || label.indexOf(" " + prefix) != -1);
+        }
+        return matches;
+    }
+
+    private void assertMatches(String prefix, int... positions) {
+        final boolean[] expected = new boolean[LABELS.length];
+        for (int position : positions) {
+            expected[position] = true;
+        }
+        assertEquals(prefix, Arrays.toString(expected), Arrays.toString(mIndex.match(prefix)));
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.dashboard;
+
+import android.content.pm.ActivityInfo;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.provider.SearchIndexableResource;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.settings.SettingsActivity;
+import com.android.settings.search.SearchIndexableResources;
+
+import java.lang.reflect.Field;
+import java.util.HashSet;
+import java.util.Set;
+
+public class SummaryProviderRegistryTest extends AndroidTestCase {
+
+    private static final String SETTINGS_PACKAGE = "com.android.settings";
+
+    @SmallTest
+    public void testAllSummaryProvidersRegistered() throws Exception {
+        final Set<String> classNames = new HashSet<String>();
+        // The fragments of the dashboard tiles, which SummaryLoader creates the providers of
+        final PackageInfo info = getContext().getPackageManager().getPackageInfo(
+                SETTINGS_PACKAGE, PackageManager.GET_ACTIVITIES | PackageManager.GET_META_DATA);
+        for (ActivityInfo activity : info.activities) {
+            if (activity.metaData != null) {
+                final String className = activity.metaData.getString(
+                        SettingsActivity.META_DATA_KEY_FRAGMENT_CLASS);
+                if (className != null) {
+                    classNames.add(className);
+                }
+            }
+        }
+        for (SearchIndexableResource resource : SearchIndexableResources.values()) {
+            classNames.add(resource.className);
+        }
+
+        int count = 0;
+        for (String className : classNames) {
+            final Field field;
+            try {
+                field = Class.forName(className).getField(SummaryLoader.SUMMARY_PROVIDER_FACTORY);
+            } catch (ClassNotFoundException | NoSuchFieldException e) {
+                continue;
+            }
+            assertSame(className + " is missing from SummaryProviderRegistry",
+                    field.get(null), SummaryProviderRegistry.getFactory(className));
+            count++;
+        }
+        assertTrue(count > 0);
+    }
+}
@@ -0,0 +1,212 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.search;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+import android.text.TextUtils;
+
+import com.android.settings.search.IndexDatabaseHelper.IndexColumns;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class PrefixSearchIndexTest extends AndroidTestCase {
+
+    private static final String[] RESULT_COLUMNS = { "rank", "title" };
+    private static final String[] ALL_COLUMNS = { "rank", "title", "title_match", "summary_match" };
+
+    // The columns selected by the SQL search, in the order of the Index.COLUMN_INDEX_ values
+    private static final String[] SEARCH_COLUMNS = {
+            IndexColumns.DATA_RANK,
+            IndexColumns.DATA_TITLE,
+            IndexColumns.DATA_SUMMARY_ON,
+            IndexColumns.DATA_SUMMARY_OFF,
+            IndexColumns.DATA_ENTRIES,
+            IndexColumns.DATA_KEYWORDS
+    };
+
+    private static final String TABLE = "prefs_index";
+
+    private PrefixSearchIndex mIndex;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        final MatrixCursor cursor = new MatrixCursor(ALL_COLUMNS);
+        cursor.addRow(new Object[] { 5, "Display", "Display", "Brightness, wallpaper" });
+        cursor.addRow(new Object[] { 1, "Wi‑Fi", "Wi-Fi", "Wireless networks" });
+        cursor.addRow(new Object[] { 3, "Bluetooth", "Bluetooth", "Wireless headsets" });
+        cursor.addRow(new Object[] { 2, "Café mode", "Café mode", null });
+        mIndex = new PrefixSearchIndex("en_US", RESULT_COLUMNS, cursor,
+                new int[] { 2 }, new int[] { 3 });
+    }
+
+    @SmallTest
+    public void testPrimaryMatchesComeFirst() {
+        final Cursor cursor = mIndex.search("wi");
+        assertEquals(2, cursor.getCount());
+        cursor.moveToFirst();
+        assertEquals("Wi‑Fi", cursor.getString(1));
+        cursor.moveToNext();
+        assertEquals("Bluetooth", cursor.getString(1));
+    }
+
+    @SmallTest
+    public void testSecondaryMatchesOrderedByRank() {
+        final Cursor cursor = mIndex.search("wire");
+        assertEquals(2, cursor.getCount());
+        cursor.moveToFirst();
+        assertEquals(1, cursor.getInt(0));
+        cursor.moveToNext();
+        assertEquals(3, cursor.getInt(0));
+    }
+
+    @SmallTest
+    public void testAllTokensMustMatch() {
+        assertEquals(1, mIndex.search("wireless head").getCount());
+        assertEquals(0, mIndex.search("wireless display").getCount());
+    }
+
+    @SmallTest
+    public void testDiacriticsAreIgnored() {
+        assertEquals(1, mIndex.search("cafe").getCount());
+        assertEquals(1, mIndex.search("CAFÉ").getCount());
+    }
+
+    @SmallTest
+    public void testHyphenatedWords() {
+        assertEquals(1, mIndex.search("wifi").getCount());
+        assertEquals(1, mIndex.search("wi fi").getCount());
+    }
+
+    @SmallTest
+    public void testEmptyQuery() {
+        assertEquals(0, mIndex.search("").getCount());
+        assertEquals(0, mIndex.search("  ").getCount());
+    }
+
+    @SmallTest
+    public void testCanNarrow() {
+        assertTrue(PrefixSearchIndex.canNarrow("wi", "wif"));
+        assertTrue(PrefixSearchIndex.canNarrow("w", "wifi"));
+        assertFalse(PrefixSearchIndex.canNarrow("wi", "wi"));
+        assertFalse(PrefixSearchIndex.canNarrow("wif", "wi"));
+        assertFalse(PrefixSearchIndex.canNarrow("wi", "wi f"));
+        assertFalse(PrefixSearchIndex.canNarrow("wi", "wi-"));
+        assertFalse(PrefixSearchIndex.canNarrow("caf", "café"));
+        assertFalse(PrefixSearchIndex.canNarrow("", "w"));
+    }
+
+    @SmallTest
+    public void testSnapshotMatchesSqlSearch() {
+        final SQLiteDatabase database = SQLiteDatabase.create(null);
+        try {
+            database.execSQL("CREATE VIRTUAL TABLE " + TABLE + " USING fts4("
+                    + TextUtils.join(", ", SEARCH_COLUMNS) + ", "
+                    + IndexColumns.DATA_TITLE_NORMALIZED + ", "
+                    + IndexColumns.DATA_SUMMARY_ON_NORMALIZED + ", "
+                    + IndexColumns.DATA_SUMMARY_OFF_NORMALIZED + ")");
+            insertRow(database, 1, "Wi\u2011Fi", "Connect to Wi\u2011Fi networks", null, null,
+                    "wlan hotspot");
+            insertRow(database, 2, "Wireless & networks", null, null, null, null);
+            insertRow(database, 3, "Bluetooth", "Wireless headsets", "Off", null, null);
+            insertRow(database, 4, "Café mode", "Wi\u2013Fi calling", null, null, "cafés");
+            insertRow(database, 5, "Display", null, null, "Wide|Narrow", "width");
+            insertRow(database, 6, "Crème", "Wiederholen", null, null, "WLAN");
+
+            assertSnapshotMatches(database, "w",
+                    new String[] { "wi", "wif", "wifi", "wir", "wid", "wie", "wl", "wlan" });
+            assertSnapshotMatches(database, "c",
+                    new String[] { "ca", "caf", "cafe", "cr", "cre", "creme", "co", "cal" });
+        } finally {
+            database.close();
+        }
+    }
+
+    private static void insertRow(SQLiteDatabase database, int rank, String title,
+            String summaryOn, String summaryOff, String entries, String keywords) {
+        final ContentValues values = new ContentValues();
+        values.put(IndexColumns.DATA_RANK, rank);
+        values.put(IndexColumns.DATA_TITLE, Index.normalizeHyphen(title));
+        values.put(IndexColumns.DATA_TITLE_NORMALIZED,
+                Index.normalizeString(Index.normalizeHyphen(title)));
+        values.put(IndexColumns.DATA_SUMMARY_ON, Index.normalizeHyphen(summaryOn));
+        values.put(IndexColumns.DATA_SUMMARY_ON_NORMALIZED,
+                Index.normalizeString(Index.normalizeHyphen(summaryOn)));
+        values.put(IndexColumns.DATA_SUMMARY_OFF, Index.normalizeHyphen(summaryOff));
+        values.put(IndexColumns.DATA_SUMMARY_OFF_NORMALIZED,
+                Index.normalizeString(Index.normalizeHyphen(summaryOff)));
+        values.put(IndexColumns.DATA_ENTRIES, entries);
+        values.put(IndexColumns.DATA_KEYWORDS, keywords);
+        database.insert(TABLE, null, values);
+    }
+
+    /**
+     * Same queries as the SQL search of the Index: the rows matching on the primary columns
+     * first, then the other rows matching on the secondary columns.
+     */
+    private static Cursor searchSql(SQLiteDatabase database, String query) {
+        final String select = "SELECT " + TextUtils.join(", ", SEARCH_COLUMNS) + " FROM "
+                + TABLE + " WHERE " + TABLE + " MATCH ?";
+        final String primary = Index.buildSearchMatchStringForColumns(query,
+                Index.MATCH_COLUMNS_PRIMARY);
+        final String secondary = Index.buildSearchMatchStringForColumns(query,
+                Index.MATCH_COLUMNS_SECONDARY);
+        final Cursor primaryCursor = database.rawQuery(
+                select + " ORDER BY " + IndexColumns.DATA_RANK, new String[] { primary });
+        final Cursor secondaryCursor = database.rawQuery(
+                select + " EXCEPT " + select + " ORDER BY " + IndexColumns.DATA_RANK,
+                new String[] { secondary, primary });
+        final MatrixCursor result = new MatrixCursor(SEARCH_COLUMNS);
+        for (Cursor cursor : new Cursor[] { primaryCursor, secondaryCursor }) {
+            while (cursor.moveToNext()) {
+                final Object[] values = new Object[SEARCH_COLUMNS.length];
+                for (int n = 0; n < values.length; n++) {
+                    values[n] = Index.getCursorValue(cursor, n);
+                }
+                result.addRow(values);
+            }
+            cursor.close();
+        }
+        return result;
+    }
+
+    private static void assertSnapshotMatches(SQLiteDatabase database, String query,
+            String[] longerQueries) {
+        final PrefixSearchIndex snapshot = PrefixSearchIndex.fromSearchResults("en_US",
+                searchSql(database, query));
+        for (String longerQuery : longerQueries) {
+            assertTrue(PrefixSearchIndex.canNarrow(query, longerQuery));
+            assertEquals(longerQuery, getTitles(searchSql(database, longerQuery)),
+                    getTitles(snapshot.search(longerQuery)));
+        }
+    }
+
+    private static List<String> getTitles(Cursor cursor) {
+        final List<String> titles = new ArrayList<String>();
+        while (cursor.moveToNext()) {
+            titles.add(cursor.getString(Index.COLUMN_INDEX_TITLE));
+        }
+        cursor.close();
+        return titles;
+    }
+}